@@ -16,7 +16,6 @@ package com.hellblazer.autoconfigure;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
 import java.net.InetAddress;
@@ -25,25 +24,54 @@ import java.net.MalformedURLException;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.stringtemplate.v4.AutoIndentWriter;
 import org.stringtemplate.v4.ST;
 import org.stringtemplate.v4.STGroup;
 import org.stringtemplate.v4.STGroupFile;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hellblazer.autoconfigure.BootstrapTimeline.Phase;
 import com.hellblazer.autoconfigure.configuration.Configuration;
 import com.hellblazer.autoconfigure.configuration.JmxConfiguration;
 import com.hellblazer.autoconfigure.configuration.RestartState;
@@ -60,19 +88,66 @@ import com.hellblazer.slp.ServiceListener;
 import com.hellblazer.slp.ServiceReference;
 import com.hellblazer.slp.ServiceScope;
 import com.hellblazer.slp.ServiceURL;
-import com.hellblazer.utils.LabeledThreadFactory;
 import com.hellblazer.utils.Rendezvous;
 import com.hellblazer.utils.Utils;
 
 /**
  * A simple way to hack around the configuration shit storm of hell that is the
  * current state of distributed systems.
- * 
+ * <p>
+ * Threading model: the service events of the discovery listeners, including
+ * the replay of the services already known when a listener is added, are
+ * delivered by the event dispatcher of the engine, one at a time. The
+ * listeners run concurrently with the work of the action pool and the timer,
+ * but never with each other. The timer of the engine only runs bookkeeping,
+ * such as cancelling the rendezvous and expiring grace periods and probes,
+ * and hands the start of the join, retries and rate limited registration
+ * updates off to the action pool. The success, failure and restart actions,
+ * the templates rendered ahead of completion and the coalesced membership
+ * changes run on the action pool, and templates are rendered in parallel on
+ * the rendering pool.
+ * <p>
+ * The discovery state is lock free. The definitions of the singleton
+ * services and service collections, and the generated configurations, are
+ * fixed at construction and are immutable thereafter. The additional ports,
+ * the runtime environment and the registered service properties are
+ * immutable snapshots, replaced as a whole when they change, so a reader
+ * always sees a complete snapshot. A singleton service holds its discovered
+ * reference in a volatile field, and the services discovered for each
+ * collection are held in an immutable snapshot replaced by compare and set.
+ * <p>
+ * Locks coordinate the life cycle of the configuration rather than the
+ * discovery state: the rendezvous and its grace periods, the rendering of
+ * templates ahead of completion against the generation on completion, the
+ * serialization of reconfigurations, the properties staged for publication
+ * and the membership changes deferred until the configured service has
+ * succeeded. Each is held only to update the state it guards, except that
+ * renders and reconfigurations are serialized for their duration on the
+ * action pool. No lock is held while waiting for the rate limit of
+ * registration updates, which is never waited for on the timer.
+ *
  * @author hhildebrand
  * 
  */
 public class AutoConfigure {
-    private static final Logger logger = LoggerFactory.getLogger(AutoConfigure.class);
+    private static final String CONFIGURATION_DIGEST = "SHA-256";
+    private static final Logger logger               = LoggerFactory.getLogger(AutoConfigure.class);
+    private static final int    RENDER_BUFFER_SIZE   = 64 * 1024;
+
+    /**
+     * Configure the templating flags, which are global to StringTemplate.
+     * The flags are only changed here, rather than while rendering, so that
+     * templates may be safely rendered in parallel.
+     * 
+     * @param verbose
+     *            - if true, turn on verbose processing of templates
+     */
+    public static void configureTemplating(boolean verbose) {
+        synchronized (STGroup.class) {
+            STGroup.verbose = verbose;
+            STGroup.trackCreationEvents = verbose;
+        }
+    }
 
     public static String constructFilter(String service,
                                          Map<String, String> properties) {
@@ -94,22 +169,69 @@ public class AutoConfigure {
         return builder.toString();
     }
 
-    private final Map<String, String>                     additionalPorts             = new HashMap<>();
+    /**
+     * Answer the registration identifying the referenced service. References
+     * lacking a registration are identified by their service URL.
+     *
+     * @param reference
+     * @return the registration of the referenced service
+     */
+    public static UUID registrationOf(ServiceReference reference) {
+        UUID registration = reference.getRegistration();
+        if (registration != null) {
+            return registration;
+        }
+        Map<String, String> properties = reference.getProperties();
+        String id = properties == null ? null
+                                      : properties.get(ServiceScope.SERVICE_REGISTRATION);
+        if (id != null) {
+            return UUID.fromString(id);
+        }
+        return UUID.nameUUIDFromBytes(String.valueOf(reference.getUrl()).getBytes());
+    }
+
+    private final AtomicReference<Map<String, String>>             additionalPorts             = new AtomicReference<>();
+    private final Set<Object>                                      arrived                     = new HashSet<>();
+    private final AtomicLong                                       attemptTimeout              = new AtomicLong();
+    private final AtomicInteger                                    attempts                    = new AtomicInteger();
 
-    private final AtomicReference<InetSocketAddress>      bound                       = new AtomicReference<>();
-    private final Configuration                           config;
-    private final ServiceScope                            discovery;
-    private final Map<String, String>                     environment                 = new HashMap<>();
-    private final AtomicBoolean                           failed                      = new AtomicBoolean();     ;
-    private final Map<String, File>                       generatedConfigurations     = new HashMap<>();
-    private final JmxDiscovery                            jmxDiscovery;
-    private final Map<String, String>                     registeredServiceProperties = new HashMap<>();
-    private final AtomicReference<Rendezvous>             rendezvous                  = new AtomicReference<>();
-    private final Map<ServiceListener, ServiceCollection> serviceCollections          = new HashMap<>();
-    private final AtomicReference<UUID>                   serviceRegistration         = new AtomicReference<>();
-    private final Map<ServiceListener, SingletonService>  singletonServices           = new HashMap<>();
+    private final AtomicReference<InetSocketAddress>               bound                       = new AtomicReference<>();
+    private final Coalescer<Map.Entry<Object, UUID>, ServiceEvent> changes;
+    private final Map<String, File>                                changedConfigurations       = new ConcurrentHashMap<>();
+    private final Configuration                                    config;
+    private final ConfigurationFuture                              configuration;
+    private final AtomicBoolean                                    configured                  = new AtomicBoolean();
+    private final AtomicReference<AutoConfigureService>            configuredService           = new AtomicReference<>();
+    private final Map<Map.Entry<Object, UUID>, ServiceEvent>       deferred                    = new LinkedHashMap<>();
+    private final ServiceScope                                     discovery;
+    private final AutoConfigureEngine                              engine;
+    private final AtomicReference<Map<String, String>>             environment                 = new AtomicReference<>();
+    private final AtomicBoolean                                    failed                      = new AtomicBoolean();
+    private final AtomicBoolean                                    generated                   = new AtomicBoolean();
+    private final Map<String, File>                                generatedConfigurations;
+    private final Map<ServiceCollection, ScheduledFuture<?>>       gracePeriods                = new ConcurrentHashMap<>();
+    private final JmxDiscovery                                     jmxDiscovery;
+    private final Map<Template, String>                            memos                       = new ConcurrentHashMap<>();
+    private final Set<ServiceCollection>                           metCollections              = Collections.newSetFromMap(new ConcurrentHashMap<ServiceCollection, Boolean>());
+    private final boolean                                          ownsEngine;
+    private final Set<String>                                      pendingChanges              = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Map<String, String>                              pendingProperties           = new HashMap<>();
+    private final AtomicReference<String>                          publishedIndex              = new AtomicReference<>();
+    private final AtomicReference<Map<String, String>>             registeredServiceProperties = new AtomicReference<>();
+    private final Map<ServiceListener, String>                     registeredListeners         = new ConcurrentHashMap<>();
+    private final TokenBucket                                      registrations;
+    private final AtomicReference<Rendezvous>                      rendezvous                  = new AtomicReference<>();
+    private final Set<Template>                                    rendered                    = Collections.newSetFromMap(new ConcurrentHashMap<Template, Boolean>());
+    private final Map<ServiceListener, ServiceCollection>          serviceCollections;
+    private final AtomicReference<UUID>                            serviceRegistration         = new AtomicReference<>();
+    private final Map<ServiceListener, SingletonService>           singletonServices;
+    private final Map<Template, Set<String>>                       templateDependencies        = new ConcurrentHashMap<>();
+    private final Map<Template, Set<String>>                       templateInputs              = new ConcurrentHashMap<>();
 
-    private final AtomicReference<ServiceURL>             thisService                 = new AtomicReference<>();
+    private final AtomicReference<ServiceURL>                      thisService                 = new AtomicReference<>();
+    private final BootstrapTimeline                                timeline;
+    private final AtomicReference<String>                          unsatisfied                 = new AtomicReference<>();
+    private final Map<String, File>                                uniqueDirectories           = new ConcurrentHashMap<>();
 
     /**
      * Construct an instance from the configuration POJO
@@ -134,23 +256,97 @@ public class AutoConfigure {
      *             - if the discovery service cannot be constructed
      */
     public AutoConfigure(Configuration config, ServiceScope discovery) {
+        this(config, new AutoConfigureEngine(discovery, config.jmx), true);
+    }
+
+    /**
+     * Construct an instance hosted by the engine
+     * 
+     * @param config
+     *            - the configuration to use
+     * @param engine
+     *            - the engine providing the shared discovery scope, timer and
+     *            dispatch pool
+     * @param ownsEngine
+     *            - if true, the engine is shut down along with this instance
+     */
+    AutoConfigure(Configuration config, final AutoConfigureEngine engine,
+                  boolean ownsEngine) {
         this.config = config;
-        this.discovery = discovery;
+        this.engine = engine;
+        this.ownsEngine = ownsEngine;
+        discovery = engine.getDiscoveryScope();
 
+        // the definitions are fixed at construction, and only read thereafter
+        Map<ServiceListener, SingletonService> services = new HashMap<>();
         for (SingletonService service : config.services) {
-            singletonServices.put(serviceListener(), service);
+            services.put(serviceListener(), service);
         }
+        singletonServices = Collections.unmodifiableMap(services);
+        Map<ServiceListener, ServiceCollection> collections = new HashMap<>();
         for (ServiceCollection collection : config.serviceCollections) {
-            serviceCollections.put(serviceCollectionListener(), collection);
+            collections.put(serviceCollectionListener(), collection);
         }
+        serviceCollections = Collections.unmodifiableMap(collections);
+        Map<String, String> ports = new HashMap<>();
         for (String p : config.additionalPorts) {
-            additionalPorts.put(p, p);
+            ports.put(p, p);
         }
+        additionalPorts.set(Collections.unmodifiableMap(ports));
+        Map<String, File> configurations = new HashMap<>();
         for (Template template : config.templates) {
-            generatedConfigurations.put(template.name, template.generated);
+            configurations.put(template.name, template.generated);
         }
-        jmxDiscovery = new JmxDiscovery(config.jmx, discovery);
-        this.discovery.start();
+        generatedConfigurations = Collections.unmodifiableMap(configurations);
+        environment.set(Collections.<String, String> emptyMap());
+        registeredServiceProperties.set(ServiceProperties.EMPTY);
+        jmxDiscovery = engine.getJmxDiscovery();
+        timeline = new BootstrapTimeline(engine.getLatencies());
+        if (ownsEngine) {
+            engine.setVerboseTemplating(config.verboseTemplating);
+            engine.setRegistrationRate(config.registrationRate,
+                                       config.registrationBurst);
+            registrations = null;
+        } else {
+            if (config.verboseTemplating && !engine.isVerboseTemplating()) {
+                // the templating flags are global to the process
+                throw new IllegalArgumentException(
+                                                   String.format("Hosted configuration [%s] requires verbose templating, which must be enabled on its engine",
+                                                                 config.serviceUrl));
+            }
+            // a hosted configuration is limited by its own rate as well as
+            // the shared rate of its engine
+            registrations = config.registrationRate > 0 ? new TokenBucket(
+                                                                          config.registrationRate,
+                                                                          config.registrationBurst)
+                                                       : null;
+        }
+        configuration = new ConfigurationFuture(new Runnable() {
+            @Override
+            public void run() {
+                Rendezvous current = rendezvous.get();
+                if (current != null) {
+                    current.cancel();
+                }
+            }
+        });
+        changes = new Coalescer<>(
+                                  config.coalescingWindow,
+                                  config.coalescingMaxDelay,
+                                  engine.getTimer(),
+                                  new Executor() {
+                                      @Override
+                                      public void execute(Runnable command) {
+                                          engine.acting(command).run();
+                                      }
+                                  },
+                                  new Coalescer.Batch<Map.Entry<Object, UUID>, ServiceEvent>() {
+                                      @Override
+                                      public void process(Map<Map.Entry<Object, UUID>, ServiceEvent> batch,
+                                                          int absorbed) {
+                                          applyChanges(batch, absorbed);
+                                      }
+                                  });
     }
 
     /**
@@ -236,11 +432,39 @@ public class AutoConfigure {
      *            complete
      * @param unit
      *            - the unit of the wait time
+     * @return the future outcome of the configuration
      */
-    public void configure(AutoConfigureService configuredService, long timeout,
-                          TimeUnit unit) {
-        configure(new HashMap<String, String>(), configuredService, timeout,
-                  unit);
+    public ConfigurationFuture configure(AutoConfigureService configuredService,
+                                         long timeout, TimeUnit unit) {
+        return configure(new HashMap<String, String>(), configuredService,
+                         timeout, unit);
+    }
+
+    /**
+     * Run the auto configuration process, without a configured service to
+     * call back. The outcome of the configuration is solely reported through
+     * the returned future.
+     * 
+     * @param environment
+     *            - a map of variables that override any configured variables
+     * @param timeout
+     *            - the length of time to wait for auto configuration to
+     *            complete
+     * @param unit
+     *            - the unit of the wait time
+     * @return the future outcome of the configuration
+     */
+    public ConfigurationFuture configure(Map<String, String> environment,
+                                         long timeout, TimeUnit unit) {
+        return configure(environment, new AutoConfigureService(this) {
+            @Override
+            public void fail(Map<String, File> configurations) {
+            }
+
+            @Override
+            public void succeed(Map<String, File> configurations) {
+            }
+        }, timeout, unit);
     }
 
     /**
@@ -255,31 +479,350 @@ public class AutoConfigure {
      *            - the unit of the wait time
      * @param environment
      *            - a map of variables that override any configured variables
+     * @return the future outcome of the configuration
      */
-    public void configure(Map<String, String> environment,
-                          AutoConfigureService configuredService, long timeout,
-                          TimeUnit unit) {
+    public ConfigurationFuture configure(Map<String, String> environment,
+                                         final AutoConfigureService configuredService,
+                                         final long timeout,
+                                         final TimeUnit unit) {
+        timeline.begin();
         File restartFile = new File(config.restartStateFile);
         if (restartFile.exists()) {
             restart(configuredService);
-            return;
+            return configuration;
         }
         if (environment == null) {
             environment = Collections.emptyMap();
         }
-        this.environment.putAll(environment);
+        this.environment.set(Collections.unmodifiableMap(new HashMap<>(
+                                                                      environment)));
+        this.configuredService.set(configuredService);
+        attemptTimeout.set(unit.toNanos(timeout));
         logger.info(String.format("Using runtime property overrides %s",
                                   environment));
         logger.info("Beginning auto configuration process");
-        Runnable successAction = successAction(configuredService);
-        int cardinality = getCardinality();
+        final Runnable successAction = successAction(configuredService);
+        final int cardinality = getCardinality();
         if (!rendezvous.compareAndSet(null,
                                       new Rendezvous(
                                                      cardinality,
-                                                     successAction,
-                                                     failureAction(configuredService)))) {
+                                                     engine.acting(successAction),
+                                                     engine.acting(failureAction(configuredService))))) {
             throw new IllegalStateException("System is already configuring!");
         }
+        final Runnable joining = new Runnable() {
+            @Override
+            public void run() {
+                join(configuredService, successAction, cardinality, timeout,
+                     unit);
+            }
+        };
+        long jitter = startJitter();
+        if (jitter <= 0) {
+            throttled("registering this service", joining);
+            return configuration;
+        }
+        logger.info(String.format("Delaying the registration of this service by %s ms",
+                                  jitter));
+        final long delayed = System.nanoTime();
+        try {
+            engine.getTimer().schedule(engine.acting(new Runnable() {
+                @Override
+                public void run() {
+                    timeline.record(Phase.START_JITTER, null, delayed);
+                    throttled("registering this service", joining);
+                }
+            }), jitter, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.error("Unable to schedule the registration of this service",
+                         e);
+            failed.set(true);
+            configuration.fail(e);
+        }
+        return configuration;
+    }
+
+    /**
+     * @return the coalescer of the membership changes applied to the
+     *         generated configurations when continuously reconfiguring
+     */
+    public Coalescer<Map.Entry<Object, UUID>, ServiceEvent> getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return the map of template names to the configuration files whose
+     *         contents were changed by the generation of the configuration.
+     *         Configurations whose contents are unchanged from a previous
+     *         generation are not rewritten
+     */
+    public Map<String, File> getChangedConfigurations() {
+        return Collections.unmodifiableMap(changedConfigurations);
+    }
+
+    /**
+     * @return the future outcome of the configuration
+     */
+    public ConfigurationFuture getConfiguration() {
+        return configuration;
+    }
+
+    public ServiceScope getDiscoveryScope() {
+        return discovery;
+    }
+
+    /**
+     * @return the histograms of the latencies of the bootstrap phases, shared
+     *         by all the configurations hosted by this instance's engine
+     */
+    public Map<Phase, LatencyHistogram> getLatencies() {
+        return engine.getLatencies();
+    }
+
+    public Map<String, File> getGeneratedConfigurations() {
+        return generatedConfigurations;
+    }
+
+    /**
+     * Get the service reference for the configured service
+     * 
+     * @return
+     */
+    public ServiceReference getServiceReference() {
+        return discovery.getReference(serviceRegistration.get());
+    }
+
+    /**
+     * @return the timeline of the bootstrap phases of this configuration
+     */
+    public BootstrapTimeline getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * Shut down this instance. If this instance is hosted by a shared engine,
+     * the service registration and listeners of this instance are removed
+     * from the shared discovery scope, otherwise the engine is shut down as
+     * well.
+     */
+    public void shutdown() {
+        if (ownsEngine) {
+            engine.shutdown();
+            return;
+        }
+        engine.evict(this);
+        release();
+    }
+
+    /**
+     * Release the discovery resources held by this instance
+     */
+    void release() {
+        Rendezvous current = rendezvous.get();
+        if (current != null) {
+            failed.set(true);
+            current.cancel();
+        }
+        for (ScheduledFuture<?> gracePeriod : gracePeriods.values()) {
+            gracePeriod.cancel(false);
+        }
+        for (Map.Entry<ServiceListener, String> entry : registeredListeners.entrySet()) {
+            engine.removeServiceListener(entry.getValue(), entry.getKey());
+        }
+        registeredListeners.clear();
+        UUID registration = serviceRegistration.getAndSet(null);
+        if (registration != null) {
+            discovery.unregister(registration);
+        }
+    }
+
+    /**
+     * Reserve an update of this service's registration within both the rate
+     * limit of this configuration, if hosted, and the shared rate limit of
+     * the engine
+     * 
+     * @return the number of nanoseconds to wait before making the update, 0
+     *         if it may be made now
+     */
+    long reserveRegistration() {
+        long wait = engine.reserveRegistration();
+        return registrations == null ? wait
+                                     : Math.max(wait, registrations.reserve());
+    }
+
+    /**
+     * The party has arrived at the rendezvous. Each party is counted once,
+     * whether or not the current rendezvous has been broken, so that a
+     * re-armed rendezvous waits only for the parties yet to arrive.
+     * 
+     * @param party
+     *            - the singleton service or service collection
+     */
+    private void arrive(Object party) {
+        synchronized (arrived) {
+            if (!arrived.add(party)) {
+                return;
+            }
+            try {
+                rendezvous.get().meet();
+            } catch (BrokenBarrierException e) {
+                logger.trace(String.format("Barrier already broken: %s", party));
+            } catch (IllegalStateException e) {
+                logger.info(String.format("Barrier already broken: %s", party));
+            }
+        }
+    }
+
+    /**
+     * The quorum of the service collection has been discovered. Wait for the
+     * grace period of the collection for the remaining services before
+     * meeting the rendezvous
+     * 
+     * @param serviceCollection
+     */
+    private void awaitGracePeriod(final ServiceCollection serviceCollection) {
+        if (serviceCollection.gracePeriod <= 0) {
+            meet(serviceCollection);
+            return;
+        }
+        synchronized (gracePeriods) {
+            if (gracePeriods.containsKey(serviceCollection)) {
+                return;
+            }
+            logger.info(String.format("Quorum of service collection [%s] discovered, waiting %s ms for the remaining services",
+                                      serviceCollection,
+                                      serviceCollection.gracePeriod));
+            Runnable expiry = new Runnable() {
+                @Override
+                public void run() {
+                    meet(serviceCollection);
+                }
+            };
+            gracePeriods.put(serviceCollection,
+                             engine.getTimer().schedule(expiry,
+                                                        serviceCollection.gracePeriod,
+                                                        TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * @param attempt
+     * @return the backoff, in milliseconds, before retrying the attempt
+     */
+    private long backoff(int attempt) {
+        long backoff = config.retryBackoff;
+        for (int i = 0; i < attempt && backoff < config.retryMaxBackoff; i++) {
+            backoff <<= 1;
+        }
+        return Math.min(backoff, config.retryMaxBackoff);
+    }
+
+    /**
+     * Record the change of the variable, to be reflected in the next
+     * reconfiguration
+     * 
+     * @param variable
+     */
+    private void changed(String variable) {
+        pendingChanges.add(variable);
+    }
+
+    /**
+     * Coalesce the service event with the other membership changes
+     * 
+     * @param definition
+     *            - the service or service collection definition the event is
+     *            for
+     * @param event
+     */
+    private void coalesce(Object definition, ServiceEvent event) {
+        Map.Entry<Object, UUID> key = new AbstractMap.SimpleImmutableEntry<>(
+                                                                             definition,
+                                                                             registrationOf(event.getReference()));
+        changes.submit(key, event);
+    }
+
+    private MessageDigest digester() {
+        try {
+            return MessageDigest.getInstance(CONFIGURATION_DIGEST);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(
+                                            String.format("Digest algorithm %s is not available",
+                                                          CONFIGURATION_DIGEST),
+                                            e);
+        }
+    }
+
+    private byte[] digestOf(Path file) throws IOException {
+        MessageDigest digest = digester();
+        ByteBuffer buffer = ByteBuffer.allocate(RENDER_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file,
+                                                    StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Invalidate the templates rendered ahead of the completion of the auto
+     * configuration that depend on the variable, so that they are rendered
+     * again
+     * 
+     * @param variable
+     */
+    private void invalidate(String variable) {
+        synchronized (rendered) {
+            if (generated.get()) {
+                return;
+            }
+            for (Iterator<Template> templates = rendered.iterator(); templates.hasNext();) {
+                if (dependenciesOf(templates.next()).contains(variable)) {
+                    templates.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the configuration file was generated from inputs with
+     *         the same digest, and has not been modified since
+     */
+    private boolean isMemoized(Template template, Path generated,
+                               String inputs) {
+        String memo = memos.get(template);
+        if (memo == null || !Files.exists(generated)) {
+            return false;
+        }
+        try {
+            return memo.equals(memoOf(generated, inputs));
+        } catch (IOException e) {
+            logger.trace(String.format("Unable to examine configuration [%s]",
+                                       generated), e);
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the service collection has met the rendezvous with all
+     *         of its services, so that its total ordering may be fixed ahead
+     *         of the completion of the auto configuration
+     */
+    private boolean isOrderable(ServiceCollection serviceCollection) {
+        return metCollections.contains(serviceCollection)
+               && serviceCollection.isSatisfied();
+    }
+
+    /**
+     * Join the cluster: register this service, and the listeners for the
+     * services it depends upon
+     */
+    private void join(AutoConfigureService configuredService,
+                      Runnable successAction, int cardinality, long timeout,
+                      TimeUnit unit) {
         try {
             registerService();
         } catch (Throwable e) {
@@ -288,9 +831,10 @@ public class AutoConfigure {
             try {
                 configuredService.fail(generatedConfigurations);
             } catch (Exception e1) {
-                logger.info("Exception encountered during the running failure action",
-                            e);
+                logger.error("Exception encountered during the running failure action",
+                             e1);
             }
+            configuration.fail(e);
             return;
         }
 
@@ -300,10 +844,7 @@ public class AutoConfigure {
             return;
         }
 
-        rendezvous.get().scheduleCancellation(timeout,
-                                              unit,
-                                              Executors.newSingleThreadScheduledExecutor(new LabeledThreadFactory(
-                                                                                                                  "Auto Configuration Scheduling Thread")));
+        rendezvous.get().scheduleCancellation(timeout, unit, engine.getTimer());
         try {
             registerListeners();
         } catch (Throwable e) {
@@ -313,43 +854,295 @@ public class AutoConfigure {
             try {
                 configuredService.fail(generatedConfigurations);
             } catch (Exception e1) {
-                logger.error(
-
-                "Exception encountered during the running failure action", e);
+                logger.error("Exception encountered during the running failure action",
+                             e1);
             }
+            configuration.fail(e);
+            return;
         }
+        scheduleProbe();
+        pipeline();
     }
 
-    public ServiceScope getDiscoveryScope() {
-        return discovery;
+    /**
+     * Remember the digest of the inputs the configuration file was generated
+     * from
+     */
+    private void memoize(Template template, Path generated, String inputs) {
+        try {
+            memos.put(template, memoOf(generated, inputs));
+        } catch (IOException e) {
+            memos.remove(template);
+            logger.warn(String.format("Unable to record the inputs of configuration [%s]",
+                                      generated), e);
+        }
     }
 
-    public Map<String, File> getGeneratedConfigurations() {
-        return generatedConfigurations;
+    /**
+     * @return the record of the digest of the inputs the configuration file
+     *         was generated from, along with the modification time and size
+     *         of the configuration file
+     */
+    private String memoOf(Path generated, String inputs) throws IOException {
+        return String.format("%s %s %s", inputs,
+                             Files.getLastModifiedTime(generated).toMillis(),
+                             Files.size(generated));
     }
 
     /**
-     * Get the service reference for the configured service
+     * Meet the rendezvous on behalf of the service collection, once
      * 
-     * @return
+     * @param serviceCollection
      */
-    public ServiceReference getServiceReference() {
-        return discovery.getReference(serviceRegistration.get());
+    private void meet(ServiceCollection serviceCollection) {
+        if (!metCollections.add(serviceCollection)) {
+            return;
+        }
+        ScheduledFuture<?> gracePeriod = gracePeriods.get(serviceCollection);
+        if (gracePeriod != null) {
+            gracePeriod.cancel(false);
+        }
+        logger.info(String.format("Service collection [%s] has discovered %s of %s services",
+                                  serviceCollection,
+                                  serviceCollection.getDiscoveredCardinality(),
+                                  serviceCollection.cardinality));
+        pipeline();
+        arrive(serviceCollection);
     }
 
-    public void shutdown() {
-        try {
-            jmxDiscovery.shutdown();
-        } catch (IOException e) {
-            logger.trace("");
+    /**
+     * @return the report of the required services and service collections
+     *         for which no service has been discovered, or null if there are
+     *         none
+     */
+    private String missingDependencies() {
+        StringBuilder report = new StringBuilder();
+        for (SingletonService service : singletonServices.values()) {
+            if (!service.isDiscovered()) {
+                report.append(String.format("%n  service [%s] of type [%s] with properties %s",
+                                            service.variable, service.service,
+                                            service.properties));
+                report.append(String.format(", %s services of the type known",
+                                            engine.knownCardinalityOf(service.service)));
+            }
+        }
+        for (ServiceCollection serviceCollection : serviceCollections.values()) {
+            if (serviceCollection.getQuorum() > 0
+                && serviceCollection.getDiscoveredCardinality() == 0) {
+                report.append(String.format("%n  service collection [%s] of type [%s] with properties %s, requiring %s services",
+                                            serviceCollection.variable,
+                                            serviceCollection.service,
+                                            serviceCollection.properties,
+                                            serviceCollection.getQuorum()));
+                report.append(String.format(", %s services of the type known",
+                                            engine.knownCardinalityOf(serviceCollection.service)));
+            }
+        }
+        if (report.length() == 0) {
+            return null;
+        }
+        return String.format("Auto configuration failed, no services have been discovered within the probe window of %s ms for:%s",
+                             config.probeWindow, report);
+    }
+
+    /**
+     * Render the templates whose dependencies have been discovered, ahead of
+     * the completion of the auto configuration, on the action pool. The
+     * generated configurations are handed off to the configured service.
+     * <p>
+     * A service collection meeting the rendezvous with its quorum is not
+     * rendered ahead of the completion, as ordering the partial membership
+     * would fix indices that differ from those of peers that discovered
+     * other members.
+     */
+    private void pipeline() {
+        if (generated.get() || failed.get()) {
+            return;
+        }
+        engine.acting(new Runnable() {
+            @Override
+            public void run() {
+                List<Template> handoffs = new ArrayList<>();
+                TemplateGroupCache.Pass groups = TemplateGroupCache.getDefault().pass();
+                synchronized (rendered) {
+                    for (Template template : config.templates) {
+                        if (generated.get() || failed.get()) {
+                            return;
+                        }
+                        if (rendered.contains(template)
+                            || !isPipelined(template)
+                            || !isSatisfied(dependenciesOf(template))) {
+                            continue;
+                        }
+                        long started = System.nanoTime();
+                        if (generate(template,
+                                     new Service(thisService.get(),
+                                                 registeredServiceProperties.get()),
+                                     resolveVariables(false), groups)) {
+                            changedConfigurations.put(template.name,
+                                                      template.generated);
+                        }
+                        timeline.record(Phase.GENERATE, template.name,
+                                        started);
+                        rendered.add(template);
+                        handoffs.add(template);
+                    }
+                }
+                for (Template template : handoffs) {
+                    logger.info(String.format("Configuration [%s] generated ahead of the completion of auto configuration",
+                                              template.name));
+                    try {
+                        configuredService.get().generated(template.name,
+                                                          template.generated);
+                    } catch (Throwable e) {
+                        logger.error(String.format("Exception encountered during the hand off of configuration [%s]",
+                                                   template.name), e);
+                    }
+                }
+            }
+        }).run();
+    }
+
+    /**
+     * Probe the dependencies at the end of the probe window, failing the auto
+     * configuration without waiting for its timeout if no service at all has
+     * been discovered for any of the required services or service
+     * collections
+     */
+    private void probe() {
+        if (generated.get() || failed.get()) {
+            return;
+        }
+        String report = missingDependencies();
+        if (report == null) {
+            logger.trace("All dependencies have candidates at the end of the probe window");
+            return;
+        }
+        unsatisfied.set(report);
+        Rendezvous current = rendezvous.get();
+        if (current != null) {
+            current.cancel();
         }
-        discovery.stop();
     }
 
     /**
-     * Restart the service
+     * Publish the changes to the properties of this service's registration,
+     * staged since the last publication, as a single update of the
+     * registration
      */
-    private void restart() {
+    private void publishProperties() {
+        synchronized (pendingProperties) {
+            if (pendingProperties.isEmpty()) {
+                return;
+            }
+        }
+        throttled("publishing the properties of this service", new Runnable() {
+            @Override
+            public void run() {
+                publishStaged();
+            }
+        });
+    }
+
+    /**
+     * Publish the properties staged since the last publication
+     */
+    private void publishStaged() {
+        Map<String, String> staged;
+        synchronized (pendingProperties) {
+            if (pendingProperties.isEmpty()) {
+                return;
+            }
+            staged = new HashMap<>(pendingProperties);
+            pendingProperties.clear();
+        }
+        UUID registration = serviceRegistration.get();
+        ServiceReference reference = registration == null ? null
+                                                         : discovery.getReference(registration);
+        if (reference == null) {
+            logger.info(String.format("Not publishing properties %s as no service is registered",
+                                      staged));
+            return;
+        }
+        Map<String, String> updated = new HashMap<>(reference.getProperties());
+        updated.putAll(staged);
+        if (logger.isInfoEnabled()) {
+            logger.info(String.format("Publishing properties %s of this service",
+                                      staged));
+        }
+        discovery.setProperties(registration, updated);
+    }
+
+    /**
+     * Re-arm the rendezvous for the parties that have yet to arrive, keeping
+     * the bound address, the registration of this service and the registered
+     * listeners
+     */
+    private void rearm() {
+        AutoConfigureService configuredService = this.configuredService.get();
+        synchronized (arrived) {
+            if (failed.get() || configuration.isDone()) {
+                return;
+            }
+            unsatisfied.set(null);
+            int parties = getCardinality() - arrived.size();
+            logger.info(String.format("Retrying auto configuration, waiting for %s parties",
+                                      parties));
+            Runnable successAction = engine.acting(successAction(configuredService));
+            Rendezvous next = new Rendezvous(
+                                             parties,
+                                             successAction,
+                                             engine.acting(failureAction(configuredService)));
+            rendezvous.set(next);
+            if (parties <= 0) {
+                successAction.run();
+                return;
+            }
+            next.scheduleCancellation(attemptTimeout.get(),
+                                      TimeUnit.NANOSECONDS, engine.getTimer());
+        }
+        scheduleProbe();
+    }
+
+    /**
+     * Record the registration, unregistration or modification of a member, to
+     * be reflected in the generated configurations when continuously
+     * reconfiguring. The changes received before the configured service has
+     * succeeded are deferred, and submitted to the coalescer of the
+     * membership changes ahead of any later change once it has, so that they
+     * are reflected by the first reconfiguration rather than racing the
+     * initial generation of the configurations. As with the coalescer, only
+     * the latest event of each member is retained, a modification being
+     * treated as a registration.
+     * 
+     * @param definition
+     *            - the service or service collection definition the event is
+     *            for
+     * @param event
+     */
+    private void record(Object definition, ServiceEvent event) {
+        if (!config.continuous || failed.get()) {
+            return;
+        }
+        synchronized (deferred) {
+            if (!configured.get()) {
+                deferred.put(new AbstractMap.SimpleImmutableEntry<>(
+                                                                    definition,
+                                                                    registrationOf(event.getReference())),
+                             event);
+                return;
+            }
+        }
+        coalesce(definition, event);
+    }
+
+    /**
+     * Reestablish the configuration from the restart state. This service is
+     * registered again, subject to the limit of the rate of registration
+     * updates, and the configured service succeeds only once the registration
+     * has been made.
+     */
+    private void restart(final AutoConfigureService configuredService) {
         ObjectMapper mapper = new ObjectMapper();
         RestartState state;
         try (FileInputStream fis = new FileInputStream(config.restartStateFile)) {
@@ -357,10 +1150,9 @@ public class AutoConfigure {
         } catch (IOException e) {
             throw new IllegalStateException("Cannot read restart state", e);
         }
-        ServiceURL url;
+        final ServiceURL url;
         try {
             url = new ServiceURL(state.serviceURL);
-            discovery.register(url, state.serviceProperties);
         } catch (MalformedURLException e) {
             throw new IllegalStateException(
                                             String.format("Unable to reconstruct service URL: %s",
@@ -369,23 +1161,26 @@ public class AutoConfigure {
         if (logger.isInfoEnabled()) {
             logger.info(String.format("Restarting service from state file: %s, service URL: %s, Properties: %s",
                                       config.restartStateFile,
-                                      state.serviceProperties,
-                                      state.serviceProperties));
+                                      state.serviceURL,
+                                      state.getServiceProperties()));
         }
+        // the registration is given its own copy of the properties
+        final Map<String, String> properties = new HashMap<>(
+                                                             state.getServiceProperties());
         bound.set(new InetSocketAddress(url.getHost(), url.getPort()));
-        return;
-    }
-
-    /**
-     * Reestablish the configuration
-     */
-    private void restart(final AutoConfigureService configuredService) {
-        restart();
-        Thread startup = new Thread(new Runnable() {
+        final Runnable reregister = new Runnable() {
             @Override
             public void run() {
                 try {
-                    jmxDiscovery.start(bound.get().getAddress());
+                    // the JMX endpoint of this process replaces the one
+                    // saved in the restart state
+                    long started = System.nanoTime();
+                    properties.put(JmxDiscovery.ENDPOINT_PROPERTY,
+                                   jmxDiscovery.open(bound.get().getAddress()).getServiceURL());
+                    timeline.record(Phase.JMX_START, null, started);
+                    serviceRegistration.set(discovery.register(url,
+                                                               properties));
+                    timeline.mark(Phase.READY, "restart");
                     configuredService.succeed(generatedConfigurations);
                 } catch (Exception e) {
                     logger.error("Failed to restart the service", e);
@@ -395,11 +1190,57 @@ public class AutoConfigure {
                         logger.error("Exception encountered during the running failure action",
                                      e1);
                     }
+                    configuration.fail(e);
+                    return;
                 }
+                configuration.succeed(generatedConfigurations);
             }
-        });
-        startup.setDaemon(true);
-        startup.start();
+        };
+        engine.acting(new Runnable() {
+            @Override
+            public void run() {
+                throttled("registering this service", reregister);
+            }
+        }).run();
+    }
+
+    /**
+     * Retry the auto configuration after its rendezvous was broken, if the
+     * retry policy permits another attempt. Only a rendezvous broken by the
+     * timeout of its attempt is retried. A rendezvous cancelled by the probe,
+     * as no service at all has been discovered for a required service or
+     * service collection, fails fast regardless of the remaining attempts.
+     * 
+     * @return true if the retry has been scheduled
+     */
+    private boolean retry() {
+        if (configuration.isDone()) {
+            return false;
+        }
+        if (unsatisfied.get() != null) {
+            logger.trace("Rendezvous was cancelled by the probe, not retrying");
+            return false;
+        }
+        int attempt = attempts.get();
+        if (attempt >= config.retries
+            || !attempts.compareAndSet(attempt, attempt + 1)) {
+            return false;
+        }
+        long backoff = backoff(attempt);
+        logger.warn(String.format("Auto configuration attempt %s of %s failed, retrying in %s ms",
+                                  attempt + 1, config.retries + 1, backoff));
+        try {
+            engine.getTimer().schedule(engine.acting(new Runnable() {
+                @Override
+                public void run() {
+                    rearm();
+                }
+            }), backoff, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.trace("Timer has been shut down, not retrying");
+            return false;
+        }
+        return true;
     }
 
     private void saveRestartState() {
@@ -410,15 +1251,170 @@ public class AutoConfigure {
             return;
         }
         state.serviceURL = reference.getUrl().getServiceURL();
-        state.serviceProperties = reference.getProperties();
+        // include the properties whose publication is rate limited
+        Map<String, String> properties = new HashMap<>(
+                                                       reference.getProperties());
+        synchronized (pendingProperties) {
+            properties.putAll(pendingProperties);
+        }
+        state.setServiceProperties(properties);
         logger.info(String.format("Saving restart state to file: %s, url: %s, properties: %s",
                                   new File(config.restartStateFile).getAbsolutePath(),
-                                  state.serviceURL, state.serviceProperties));
+                                  state.serviceURL, state.getServiceProperties()));
+        try {
+            ObjectMapper mapper = new ObjectMapper();
+            mapper.writer().writeValue(new File(config.restartStateFile), state);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to save restart state", e);
+        }
+    }
+
+    /**
+     * Schedule the probe of the dependencies at the end of the probe window,
+     * if one is configured
+     */
+    private void scheduleProbe() {
+        if (config.probeWindow <= 0) {
+            return;
+        }
+        try {
+            engine.getTimer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    probe();
+                }
+            }, config.probeWindow, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.trace("Timer has been shut down, not probing the dependencies");
+        }
+    }
+
+    /**
+     * Stage the change to the property of this service's registration, to be
+     * published with any other changes when the configurations have been
+     * generated
+     * 
+     * @param key
+     * @param value
+     */
+    private void stageProperty(String key, String value) {
+        synchronized (pendingProperties) {
+            pendingProperties.put(key, value);
+        }
+    }
+
+    /**
+     * @return the random delay, in milliseconds, before this service joins
+     *         the cluster, spreading the registrations of a fleet of services
+     *         started together
+     */
+    private long startJitter() {
+        if (config.startJitter <= 0) {
+            return 0;
+        }
+        return ThreadLocalRandom.current().nextLong(config.startJitter + 1);
+    }
+
+    /**
+     * Make the update of a registration within the rate limit of the engine.
+     * The update is made on the calling thread if it is within the limit,
+     * otherwise it is handed off to the action pool once the limit permits,
+     * so that no thread waits for the limit.
+     * 
+     * @param action
+     *            - the description of the update
+     * @param update
+     *            - the update of the registration
+     */
+    private void throttled(String action, Runnable update) {
+        long wait = reserveRegistration();
+        if (wait <= 0) {
+            update.run();
+            return;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Rate limiting %s by %s ms", action,
+                                       TimeUnit.NANOSECONDS.toMillis(wait)));
+        }
+        try {
+            engine.getTimer().schedule(engine.acting(update), wait,
+                                       TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.trace(String.format("Timer has been shut down, not %s",
+                                       action));
+        }
+    }
+
+    /**
+     * Write the rendering of the template to a temporary file, replacing the
+     * configuration file with it if their contents differ. The replacement
+     * keeps the permissions of the configuration file it replaces
+     * 
+     * @return true if the contents of the configuration file changed
+     */
+    private boolean write(Template template, ST st, Path generated) {
+        Path staged = null;
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.writer().writeValue(new File(config.restartStateFile), state);
+            // created with the default permissions, rather than the owner
+            // only permissions of a temporary file
+            staged = generated.resolveSibling("." + generated.getFileName()
+                                              + "." + UUID.randomUUID()
+                                              + ".tmp");
+            MessageDigest digest = digester();
+            try (FileChannel channel = FileChannel.open(staged,
+                                                        StandardOpenOption.CREATE_NEW,
+                                                        StandardOpenOption.WRITE)) {
+                Writer writer = Channels.newWriter(Channels.newChannel(new DigestOutputStream(
+                                                                                              Channels.newOutputStream(channel),
+                                                                                              digest)),
+                                                   Charset.forName(template.charset).newEncoder(),
+                                                   RENDER_BUFFER_SIZE);
+                st.write(new AutoIndentWriter(writer));
+                writer.flush();
+                if (template.sync) {
+                    channel.force(true);
+                }
+            }
+            if (Files.exists(generated)
+                && Files.size(generated) == Files.size(staged)
+                && Arrays.equals(digest.digest(), digestOf(generated))) {
+                logger.debug(String.format("Configuration [%s] is unchanged",
+                                           template.name));
+                return false;
+            }
+            if (Files.exists(generated)) {
+                try {
+                    Files.setPosixFilePermissions(staged,
+                                                  Files.getPosixFilePermissions(generated));
+                } catch (UnsupportedOperationException e) {
+                    logger.trace(String.format("Cannot preserve the permissions of configuration [%s]",
+                                               template.name));
+                }
+            }
+            try {
+                Files.move(staged, generated, StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(staged, generated,
+                           StandardCopyOption.REPLACE_EXISTING);
+            }
+            staged = null;
+            return true;
         } catch (IOException e) {
-            throw new IllegalStateException("Unable to save restart state", e);
+            String msg = String.format("Cannot write generated configuration file[%s] for templateGroup [%s]",
+                                       template.generated.getAbsolutePath(),
+                                       template.templateGroup);
+            logger.error(msg, e);
+            throw new IllegalStateException(msg, e);
+        } finally {
+            if (staged != null) {
+                try {
+                    Files.deleteIfExists(staged);
+                } catch (IOException e) {
+                    logger.trace(String.format("Unable to delete staged configuration [%s]",
+                                               staged), e);
+                }
+            }
         }
     }
 
@@ -427,9 +1423,12 @@ public class AutoConfigure {
      * instance.
      */
     protected void allocateAdditionalPorts() {
-        for (Map.Entry<String, String> entry : additionalPorts.entrySet()) {
-            entry.setValue(String.valueOf(Utils.allocatePort(bound.get().getAddress())));
+        Map<String, String> ports = new HashMap<>();
+        for (String port : additionalPorts.get().keySet()) {
+            ports.put(port,
+                      String.valueOf(Utils.allocatePort(bound.get().getAddress())));
         }
+        additionalPorts.set(Collections.unmodifiableMap(ports));
     }
 
     /**
@@ -437,6 +1436,7 @@ public class AutoConfigure {
      * service being configured.
      */
     protected void allocatePort() {
+        long started = System.nanoTime();
         InetAddress address = determineHostAddress();
         int port = Utils.allocatePort(address);
         if (port <= 0) {
@@ -448,13 +1448,95 @@ public class AutoConfigure {
         InetSocketAddress boundAddress = new InetSocketAddress(address, port);
         logger.info(String.format("Binding this service to [%s]", boundAddress));
         bound.set(boundAddress);
+        timeline.record(Phase.ALLOCATE_PORT, boundAddress.toString(), started);
+    }
+
+    /**
+     * Apply the coalesced membership changes and reconfigure
+     * 
+     * @param batch
+     *            - the latest service event of each changed member, keyed by
+     *            the definition and registration of the member. As only the
+     *            latest event is retained, a modification of a member is
+     *            treated as its registration
+     * @param absorbed
+     *            - the number of service events absorbed by the batch
+     */
+    protected void applyChanges(Map<Map.Entry<Object, UUID>, ServiceEvent> batch,
+                                int absorbed) {
+        logger.info(String.format("Applying %s membership changes coalesced from %s service events",
+                                  batch.size(), absorbed));
+        for (Map.Entry<Map.Entry<Object, UUID>, ServiceEvent> entry : batch.entrySet()) {
+            Object definition = entry.getKey().getKey();
+            ServiceEvent event = entry.getValue();
+            if (definition instanceof ServiceCollection) {
+                ServiceCollection serviceCollection = (ServiceCollection) definition;
+                switch (event.getType()) {
+                    case REGISTERED:
+                    case MODIFIED:
+                        registered(event.getReference(), serviceCollection);
+                        break;
+                    case UNREGISTERED:
+                        unregistered(event.getReference(), serviceCollection);
+                        break;
+                }
+            } else {
+                SingletonService service = (SingletonService) definition;
+                switch (event.getType()) {
+                    case REGISTERED:
+                    case MODIFIED:
+                        registered(event.getReference(), service);
+                        break;
+                    case UNREGISTERED:
+                        unregistered(event.getReference(), service);
+                        break;
+                }
+            }
+        }
+        reconfigure();
+    }
+
+    /**
+     * Answer the dependencies of the template, the variables of the services
+     * and service collections the template uses
+     * 
+     * @param template
+     * @return the variables of the services and service collections used by
+     *         the template
+     */
+    protected Set<String> dependenciesOf(Template template) {
+        Set<String> dependencies = templateDependencies.get(template);
+        if (dependencies == null) {
+            Set<String> uses = new HashSet<>(
+                                             template.uses == null ? inputsOf(template)
+                                                                  : template.uses);
+            dependencies = new HashSet<>();
+            for (SingletonService service : singletonServices.values()) {
+                if (uses.remove(service.variable)) {
+                    dependencies.add(service.variable);
+                }
+            }
+            for (ServiceCollection collection : serviceCollections.values()) {
+                if (uses.remove(collection.variable)) {
+                    dependencies.add(collection.variable);
+                }
+            }
+            if (template.uses != null && !uses.isEmpty()) {
+                logger.warn(String.format("Configuration [%s] uses %s, which are neither services nor service collections",
+                                          template.name, uses));
+            }
+            templateDependencies.put(template, dependencies);
+        }
+        return dependencies;
     }
 
     /**
      * @return the host address to bind this service to
      */
     protected InetAddress determineHostAddress() {
+        long started = System.nanoTime();
         NetworkInterface iface = determineNetworkInterface();
+        timeline.record(Phase.NETWORK_INTERFACE, iface.getName(), started);
         InetAddress raw = null;
         for (Enumeration<InetAddress> interfaceAddresses = iface.getInetAddresses(); interfaceAddresses.hasMoreElements();) {
             if (!interfaceAddresses.hasMoreElements()) {
@@ -539,6 +1621,40 @@ public class AutoConfigure {
         return iface;
     }
 
+    /**
+     * Answer the canonical digest of the inputs of the template: the template
+     * group, the values of the formal arguments of the template and the
+     * model of the configured service
+     * 
+     * @param template
+     * @param thisService
+     *            - The model for the configured service
+     * @param variables
+     *            - the variables used by the template
+     * @param groups
+     *            - the template groups of the render pass
+     * @return the hexadecimal digest of the inputs of the template
+     */
+    protected String digestInputs(Template template, Service thisService,
+                                  Map<String, Object> variables,
+                                  TemplateGroupCache.Pass groups) {
+        InputDigest digest = new InputDigest(CONFIGURATION_DIGEST);
+        digest.add("templateGroup",
+                   groups.getFingerprint(template.templateGroup));
+        digest.add("template", template.template);
+        digest.add("charset", template.charset);
+        for (String input : new TreeSet<>(inputsOf(template))) {
+            digest.add(input, variables.get(input));
+            if ("gossipSeeds".equals(input)) {
+                digest.add(input, config.gossip.seeds);
+            }
+            if (input.equals(template.thisServiceName)) {
+                digest.add(input, thisService);
+            }
+        }
+        return digest.toHex();
+    }
+
     /**
      * Discover a new instance of the service collection
      * 
@@ -552,14 +1668,21 @@ public class AutoConfigure {
         logger.info(String.format("discovered [%s, %s] for service collection [%s]",
                                   reference.getUrl(),
                                   reference.getProperties(), serviceCollection));
-        serviceCollection.discover(reference);
-        try {
-            rendezvous.get().meet();
-        } catch (BrokenBarrierException e) {
-            logger.trace("Barrier already broken");
-        } catch (IllegalStateException e) {
-            logger.info(String.format("Barrier already broken: %s",
-                                      reference.getUrl()));
+        if (!serviceCollection.discover(reference)) {
+            logger.trace(String.format("Ignoring redelivered registration of [%s] for service collection [%s]",
+                                       reference.getUrl(), serviceCollection));
+            return;
+        }
+        timeline.mark(Phase.DISCOVER,
+                      String.format("%s %s", serviceCollection.variable,
+                                    reference.getUrl()));
+        if (metCollections.contains(serviceCollection)) {
+            invalidate(serviceCollection.variable);
+            pipeline();
+        } else if (serviceCollection.isSatisfied()) {
+            meet(serviceCollection);
+        } else if (serviceCollection.isQuorate()) {
+            awaitGracePeriod(serviceCollection);
         }
     }
 
@@ -575,17 +1698,22 @@ public class AutoConfigure {
         logger.info(String.format("discovered [%s, %s] for service [%s]",
                                   reference.getUrl(),
                                   reference.getProperties(), service));
+        if (service.isDiscovered(reference)) {
+            logger.trace(String.format("Ignoring redelivered registration of [%s] for service [%s]",
+                                       reference.getUrl(), service));
+            return;
+        }
         if (service.isDiscovered()) {
             logger.warn(String.format("Service [%s] has already been discovered!",
                                       service));
             return;
         }
         service.discover(reference);
-        try {
-            rendezvous.get().meet();
-        } catch (BrokenBarrierException e) {
-            logger.trace("Barrier already broken");
-        }
+        timeline.mark(Phase.DISCOVER,
+                      String.format("%s %s", service.variable,
+                                    reference.getUrl()));
+        pipeline();
+        arrive(service);
     }
 
     /**
@@ -597,10 +1725,16 @@ public class AutoConfigure {
         return new Runnable() {
             @Override
             public void run() {
+                if (failed.get() || retry()) {
+                    return;
+                }
                 if (!failed.compareAndSet(false, true)) {
                     return;
                 }
                 logger.error("Auto configuration failed due to not all services being discovered");
+                if (unsatisfied.get() != null) {
+                    logger.error(unsatisfied.get());
+                }
                 for (SingletonService service : singletonServices.values()) {
                     if (!service.isDiscovered()) {
                         logger.error(String.format("Service [%s] has not been discovered",
@@ -608,14 +1742,14 @@ public class AutoConfigure {
                     }
                 }
                 for (ServiceCollection serviceCollection : serviceCollections.values()) {
-                    if (!serviceCollection.isSatisfied()) {
-                        int cardinality = serviceCollection.cardinality;
+                    if (!serviceCollection.isQuorate()) {
+                        int quorum = serviceCollection.getQuorum();
                         int discoveredCardinality = serviceCollection.getDiscoveredCardinality();
                         logger.error(String.format("Service collection [%s] has not been satisfied, missing %s services",
                                                    serviceCollection,
-                                                   cardinality
+                                                   quorum
                                                            - discoveredCardinality,
-                                                   cardinality));
+                                                   quorum));
                     }
                 }
                 try {
@@ -624,12 +1758,28 @@ public class AutoConfigure {
                     logger.error(String.format("Configured service had a sad %s",
                                                configuredService));
                 }
+                String report = unsatisfied.get();
+                configuration.fail(new IllegalStateException(
+                                                             report == null ? "Auto configuration failed due to not all services being discovered"
+                                                                           : report));
             }
         };
     }
 
     /**
-     * Generate the configuration file from the template group
+     * Generate the configuration file from the template group. The rendering
+     * is streamed through a bounded buffer to a temporary file, which
+     * atomically replaces the configuration file only if their contents
+     * differ. Readers never see a partially written configuration, and the
+     * configuration file is left untouched if its contents are unchanged.
+     * <p>
+     * The digest of the inputs of the template, including the fingerprint of
+     * its template group and the groups it imports, is remembered in memory
+     * along with the modification time and size of the configuration file,
+     * and the template is not rendered at all if the digest of its inputs and
+     * the configuration file are unchanged. Nothing is recorded next to the
+     * configuration file, so the first generation in a process always
+     * renders the template.
      * 
      * @param template
      *            - the template used to generate the configuration
@@ -637,23 +1787,40 @@ public class AutoConfigure {
      *            - The model for the configured service
      * @param variables
      *            - the variables used by the template
+     * @return true if the contents of the configuration file changed
      */
-    protected void generate(Template template, Service thisService,
-                            Map<String, Object> variables) {
-        STGroupFile group = new STGroupFile(template.templateGroup);
-        STGroup.verbose = config.verboseTemplating;
-        STGroup.trackCreationEvents = config.verboseTemplating;
-        group.registerModelAdaptor(Service.class, new ServiceModelAdaptor());
-        group.registerModelAdaptor(InetSocketAddress.class,
-                                   new InetSocketAddressAdaptor());
-        ST st = group.getInstanceOf(template.template);
-        if (st == null) {
-            String msg = String.format("Cannot retrieve template [%s] from template group file [%s]",
-                                       template.template,
-                                       template.templateGroup);
-            logger.error(msg);
-            throw new IllegalStateException(msg);
+    protected boolean generate(Template template, Service thisService,
+                               Map<String, Object> variables) {
+        return generate(template, thisService, variables,
+                        TemplateGroupCache.getDefault().pass());
+    }
+
+    /**
+     * Generate the configuration file from the template group resolved by
+     * the render pass
+     * 
+     * @param template
+     *            - the template used to generate the configuration
+     * @param thisService
+     *            - The model for the configured service
+     * @param variables
+     *            - the variables used by the template
+     * @param groups
+     *            - the template groups of the render pass
+     * @return true if the contents of the configuration file changed
+     * @see #generate(Template, Service, Map)
+     */
+    protected boolean generate(Template template, Service thisService,
+                               Map<String, Object> variables,
+                               TemplateGroupCache.Pass groups) {
+        Path generated = template.generated.getAbsoluteFile().toPath();
+        String inputs = digestInputs(template, thisService, variables, groups);
+        if (isMemoized(template, generated, inputs)) {
+            logger.debug(String.format("Inputs of configuration [%s] are unchanged, skipping rendering",
+                                       template.name));
+            return false;
         }
+        ST st = instanceOf(template, groups);
         // Register the substitution variables
         for (Map.Entry<String, Object> entry : variables.entrySet()) {
             try {
@@ -683,29 +1850,129 @@ public class AutoConfigure {
         }
 
         // Render!
-        String generated = st.render();
+        boolean changed = write(template, st, generated);
+        memoize(template, generated, inputs);
+        return changed;
+    }
 
-        try (Writer writer = new FileWriter(template.generated)) {
-            writer.write(generated);
-        } catch (IOException e) {
-            String msg = String.format("Cannot write generated configuration file[%s] for templateGroup [%s]",
-                                       template.generated.getAbsolutePath(),
-                                       template.templateGroup);
-            logger.error(msg, e);
-            throw new IllegalStateException(msg, e);
+    /**
+     * Generate the configuration files from the templates, rendering the
+     * templates in parallel
+     * 
+     * @param templates
+     *            - the templates used to generate the configurations
+     * @param thisService
+     *            - The model for the configured service
+     * @param variables
+     *            - the variables used by the templates
+     * @param bootstrapping
+     *            - if true, record the rendering of each template in the
+     *            bootstrap timeline
+     * @return the map of template names to the configuration files whose
+     *         contents changed
+     */
+    protected Map<String, File> generate(List<Template> templates,
+                                         final Service thisService,
+                                         final Map<String, Object> variables,
+                                         final boolean bootstrapping) {
+        // the template groups are examined once for all the renders
+        final TemplateGroupCache.Pass groups = TemplateGroupCache.getDefault().pass();
+        final Map<String, File> changed = new ConcurrentHashMap<>();
+        List<Callable<Void>> renders = new ArrayList<>();
+        for (final Template template : templates) {
+            renders.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    long started = System.nanoTime();
+                    if (generate(template, thisService, variables, groups)) {
+                        changed.put(template.name, template.generated);
+                    }
+                    if (bootstrapping) {
+                        timeline.record(Phase.GENERATE, template.name,
+                                        started);
+                    }
+                    return null;
+                }
+            });
+        }
+        if (renders.size() == 1) {
+            try {
+                renders.get(0).call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException("Error rendering", e);
+            }
+        } else if (!renders.isEmpty()) {
+            engine.render(renders);
         }
+        return changed;
     }
 
     /**
-     * Generate the configuration files from the templates
+     * Generate the configuration files from the templates, other than those
+     * already rendered ahead of the completion of the auto configuration
      */
     protected void generateConfigurations() {
+        synchronized (rendered) {
+            Service model = new Service(thisService.get(),
+                                        registeredServiceProperties.get());
+            long started = System.nanoTime();
+            Map<String, Object> variables = resolveVariables();
+            timeline.record(Phase.RESOLVE_VARIABLES, null, started);
+            List<Template> templates = new ArrayList<>();
+            for (Template template : config.templates) {
+                if (!rendered.contains(template)) {
+                    templates.add(template);
+                }
+            }
+            changedConfigurations.putAll(generate(templates, model, variables,
+                                                  true));
+        }
+        publishProperties();
+    }
+
+    /**
+     * Regenerate the configuration files of the templates using any of the
+     * changed variables
+     * 
+     * @param changed
+     *            - the names of the variables whose values have changed
+     * @return the map of template names to regenerated configuration files
+     *         whose contents changed
+     */
+    protected Map<String, File> generateConfigurations(Set<String> changed) {
+        Set<String> missing = new HashSet<>();
+        for (SingletonService definition : singletonServices.values()) {
+            if (!definition.isDiscovered()) {
+                missing.add(definition.variable);
+            }
+        }
+        if (config.totalOrderingFrom != null
+            && config.totalOrderingVariable != null
+            && changed.contains(config.totalOrderingFrom)) {
+            changed.add(config.totalOrderingVariable);
+        }
         Service model = new Service(thisService.get(),
-                                    registeredServiceProperties);
+                                    registeredServiceProperties.get());
         Map<String, Object> variables = resolveVariables();
+        List<Template> templates = new ArrayList<>();
         for (Template template : config.templates) {
-            generate(template, model, variables);
+            Set<String> inputs = inputsOf(template);
+            if (Collections.disjoint(inputs, changed)) {
+                continue;
+            }
+            if (!Collections.disjoint(inputs, missing)) {
+                logger.warn(String.format("Not regenerating configuration [%s], as required services %s are not currently available",
+                                          template.name, missing));
+                continue;
+            }
+            templates.add(template);
         }
+        Map<String, File> regenerated = generate(templates, model, variables,
+                                                 false);
+        publishProperties();
+        return regenerated;
     }
 
     /**
@@ -719,20 +1986,160 @@ public class AutoConfigure {
     }
 
     /**
-     * @return the cardinality of the expected number of services required to
-     *         configure this service instance
+     * @return the number of parties of the rendezvous required to configure
+     *         this service instance. Each singleton service is a party, as is
+     *         each service collection that requires services.
      */
     protected int getCardinality() {
         int cardinality = 0;
+        int registrations = 0;
         cardinality += singletonServices.size();
+        registrations += singletonServices.size();
         for (ServiceCollection collection : serviceCollections.values()) {
-            cardinality += collection.cardinality;
+            if (collection.cardinality > 0) {
+                cardinality++;
+                registrations += collection.getQuorum();
+            }
         }
-        logger.info(String.format("Expecting %s service registrations",
-                                  cardinality));
+        logger.info(String.format("Expecting at least %s service registrations",
+                                  registrations));
         return cardinality;
     }
 
+    /**
+     * Answer the inputs of the template, the formal arguments of the template
+     * used to generate the configuration
+     * 
+     * @param template
+     * @return the names of the variables used by the template
+     */
+    protected Set<String> inputsOf(Template template) {
+        Set<String> inputs = templateInputs.get(template);
+        if (inputs == null) {
+            inputs = new HashSet<>();
+            ST st = instanceOf(template);
+            if (st.impl.formalArguments != null) {
+                inputs.addAll(st.impl.formalArguments.keySet());
+            }
+            templateInputs.put(template, inputs);
+        }
+        return inputs;
+    }
+
+    /**
+     * @param template
+     * @return a new instance of the template used to generate the
+     *         configuration, from the cached compilation of the template
+     *         group
+     */
+    protected ST instanceOf(Template template) {
+        return instanceOf(template, TemplateGroupCache.getDefault().pass());
+    }
+
+    /**
+     * @param template
+     * @param groups
+     *            - the template groups of the render pass
+     * @return a new instance of the template used to generate the
+     *         configuration, from the template group resolved by the render
+     *         pass
+     */
+    protected ST instanceOf(Template template, TemplateGroupCache.Pass groups) {
+        STGroupFile group = groups.getGroup(template.templateGroup);
+        ST st = group.getInstanceOf(template.template);
+        if (st == null) {
+            String msg = String.format("Cannot retrieve template [%s] from template group file [%s]",
+                                       template.template,
+                                       template.templateGroup);
+            logger.error(msg);
+            throw new IllegalStateException(msg);
+        }
+        return st;
+    }
+
+    /**
+     * Answer true if the template may be rendered ahead of the completion of
+     * the auto configuration. Templates using the total ordering index of
+     * this service are rendered only upon completion, as the index is not
+     * known until then.
+     * 
+     * @param template
+     * @return true if the template may be rendered as soon as its
+     *         dependencies have been discovered
+     */
+    protected boolean isPipelined(Template template) {
+        return config.totalOrderingVariable == null
+               || !inputsOf(template).contains(config.totalOrderingVariable);
+    }
+
+    /**
+     * @return true if the configuration has been generated and membership
+     *         changes are to be reflected in the generated configurations
+     */
+    protected boolean isReconfiguring() {
+        return config.continuous && generated.get() && !failed.get();
+    }
+
+    /**
+     * @param dependencies
+     *            - the variables of services and service collections
+     * @return true if the services have been discovered and the service
+     *         collections have discovered all of their services
+     */
+    protected boolean isSatisfied(Set<String> dependencies) {
+        for (SingletonService service : singletonServices.values()) {
+            if (dependencies.contains(service.variable)
+                && !service.isDiscovered()) {
+                return false;
+            }
+        }
+        for (ServiceCollection collection : serviceCollections.values()) {
+            if (dependencies.contains(collection.variable)
+                && collection.cardinality > 0
+                && !isOrderable(collection)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Regenerate the configurations affected by the pending changes and
+     * notify the configured service of the regenerated configurations
+     */
+    protected synchronized void reconfigure() {
+        if (!configured.get()) {
+            // the changes are reflected once the configured service succeeds
+            return;
+        }
+        Set<String> changed = new HashSet<>();
+        for (Iterator<String> pending = pendingChanges.iterator(); pending.hasNext();) {
+            changed.add(pending.next());
+            pending.remove();
+        }
+        if (changed.isEmpty() || !isReconfiguring()) {
+            return;
+        }
+        logger.info(String.format("Reconfiguring due to changes in %s",
+                                  changed));
+        Map<String, File> regenerated;
+        try {
+            regenerated = generateConfigurations(changed);
+        } catch (Throwable e) {
+            logger.error("Error regenerating configurations", e);
+            return;
+        }
+        if (regenerated.isEmpty()) {
+            return;
+        }
+        try {
+            configuredService.get().reconfigure(regenerated);
+        } catch (Throwable e) {
+            logger.error("Exception encountered during the running reconfiguration action",
+                         e);
+        }
+    }
+
     /**
      * Register the listeners for the required services on the discovery scope
      */
@@ -745,20 +2152,24 @@ public class AutoConfigure {
      * Register the configured service instance in the discovery scope.
      */
     protected void registerService() {
+        long started = System.nanoTime();
         allocatePort();
         allocateAdditionalPorts();
         String service = String.format(config.serviceUrl,
                                        bound.get().getHostName(),
                                        bound.get().getPort());
-        registeredServiceProperties.putAll(config.serviceProperties);
-        registeredServiceProperties.putAll(additionalPorts);
+        Map<String, String> properties = new HashMap<>(
+                                                       config.serviceProperties);
+        properties.putAll(additionalPorts.get());
+        registeredServiceProperties.set(ServiceProperties.of(properties));
         try {
             thisService.set(new ServiceURL(service));
             logger.info(String.format("Registering this service as [%s] with properties %s",
-                                      thisService.get(),
-                                      registeredServiceProperties));
+                                      thisService.get(), properties));
+            // the registration is given its own copy of the properties
             serviceRegistration.set(discovery.register(thisService.get(),
-                                                       registeredServiceProperties));
+                                                       properties));
+            timeline.record(Phase.REGISTER_SERVICE, service, started);
         } catch (MalformedURLException e) {
             String msg = String.format("Invalid syntax for service URL [%s]",
                                        service);
@@ -777,8 +2188,9 @@ public class AutoConfigure {
             try {
                 logger.info(String.format("Registering listener for service collection %s",
                                           service));
-                discovery.addServiceListener(entry.getKey(),
-                                             service.constructFilter());
+                engine.addServiceListener(service.service, entry.getKey(),
+                                          service.properties);
+                registeredListeners.put(entry.getKey(), service.service);
             } catch (InvalidSyntaxException e) {
                 String msg = String.format("Invalid syntax for discovered service collection [%s]",
                                            service);
@@ -798,8 +2210,9 @@ public class AutoConfigure {
             try {
                 logger.info(String.format("Registering listener for service [%s]",
                                           service));
-                discovery.addServiceListener(entry.getKey(),
-                                             service.constructFilter());
+                engine.addServiceListener(service.service, entry.getKey(),
+                                          service.properties);
+                registeredListeners.put(entry.getKey(), service.service);
             } catch (InvalidSyntaxException e) {
                 String msg = String.format("Invalid syntax for discovered service [%s]",
                                            service);
@@ -807,12 +2220,60 @@ public class AutoConfigure {
                 throw new IllegalArgumentException(msg, e);
             }
         }
-    };
+    }
+
+    /**
+     * A member of the service collection has been registered or modified
+     * 
+     * @param reference
+     *            - the service reference of the member
+     * @param serviceCollection
+     *            - the service collection definition
+     */
+    protected void registered(ServiceReference reference,
+                              ServiceCollection serviceCollection) {
+        if (!serviceCollection.discover(reference)) {
+            serviceCollection.update(reference);
+        }
+        changed(serviceCollection.variable);
+    }
+
+    /**
+     * A service singleton has been registered or modified. A registered
+     * singleton replaces a previously discovered service that has been
+     * unregistered.
+     * 
+     * @param reference
+     *            - the service reference of the singleton
+     * @param service
+     *            - the service singleton definition
+     */
+    protected void registered(ServiceReference reference,
+                              SingletonService service) {
+        if (service.isDiscovered() && !service.isDiscovered(reference)) {
+            logger.info(String.format("Service [%s] has already been discovered",
+                                      service));
+            return;
+        }
+        service.discover(reference);
+        changed(service.variable);
+    }
 
     /**
      * @return the mapping of substitution variables used by the templates
      */
     protected Map<String, Object> resolveVariables() {
+        return resolveVariables(true);
+    }
+
+    /**
+     * @param complete
+     *            - if false, the auto configuration has yet to complete, and
+     *            only the service collections that have met the rendezvous
+     *            are resolved
+     * @return the mapping of substitution variables used by the templates
+     */
+    protected Map<String, Object> resolveVariables(boolean complete) {
         Map<String, Object> resolvedVariables = new HashMap<>();
 
         // Add any configured variables
@@ -821,7 +2282,12 @@ public class AutoConfigure {
         // Add the generated directories
         for (UniqueDirectory uDir : config.uniqueDirectories) {
             try {
-                resolvedVariables.put(uDir.variable, uDir.resolve());
+                File directory = uniqueDirectories.get(uDir.variable);
+                if (directory == null) {
+                    directory = uDir.resolve();
+                    uniqueDirectories.put(uDir.variable, directory);
+                }
+                resolvedVariables.put(uDir.variable, directory);
             } catch (IOException e) {
                 String msg = String.format("Cannot create unique directory [%s]",
                                            uDir);
@@ -832,29 +2298,35 @@ public class AutoConfigure {
 
         // Register the service variables
         for (SingletonService definition : singletonServices.values()) {
-            resolvedVariables.put(definition.variable,
-                                  definition.constructService());
+            if (definition.isDiscovered()) {
+                resolvedVariables.put(definition.variable,
+                                      definition.constructService());
+            }
         }
 
         // Register the service collection variables
         for (ServiceCollection definition : serviceCollections.values()) {
-            resolvedVariables.put(definition.variable, definition.getCluster());
+            if (complete || definition.cardinality <= 0
+                || isOrderable(definition)) {
+                resolvedVariables.put(definition.variable,
+                                      definition.getCluster(serviceRegistration.get()));
+            }
         }
 
         // Register the id variable, if a service collection is indicated
         // as the collection providing the total ordering for this service's
         // cluster
-        if (config.totalOrderingFrom != null) {
+        if (config.totalOrderingFrom != null && complete) {
             if (config.totalOrderingVariable == null) {
                 logger.info(String.format("Configuration indicated total ordering of this service's cluster, but no totalOrderingVariable is configured to receive this index",
                                           config.totalOrderingFrom));
             } else {
                 String index = null;
-                String idPropertyName = null;
+                ServiceCollection ordering = null;
                 for (ServiceCollection serviceCollection : serviceCollections.values()) {
                     if (serviceCollection.variable.equals(config.totalOrderingFrom)) {
                         index = serviceCollection.totalOrderingIndexOf(serviceRegistration.get());
-                        idPropertyName = serviceCollection.idProperty;
+                        ordering = serviceCollection;
                         break;
                     }
                 }
@@ -867,17 +2339,17 @@ public class AutoConfigure {
                 logger.info(String.format("Using a total ordering index of %s for the configured service from service collection %s",
                                           index, config.totalOrderingFrom));
                 resolvedVariables.put(config.totalOrderingVariable, index);
-                ServiceReference reference = discovery.getReference(serviceRegistration.get());
-                Map<String, String> updated = new HashMap<String, String>(
-                                                                          reference.getProperties());
-                updated.put(idPropertyName, index);
-                discovery.setProperties(serviceRegistration.get(), updated);
+                if (index.equals(publishedIndex.getAndSet(index))) {
+                    logger.trace("Total ordering index is unchanged");
+                } else {
+                    stageProperty(ordering.idProperty, index);
+                }
             }
         }
 
         // Finally, add any property overrides that were specified during the
         // runtime call to configure.
-        resolvedVariables.putAll(environment);
+        resolvedVariables.putAll(environment.get());
 
         logger.info(String.format("Using property substitions [%s]",
                                   resolvedVariables));
@@ -892,25 +2364,31 @@ public class AutoConfigure {
             @Override
             public void serviceChanged(ServiceEvent event) {
                 ServiceReference reference = event.getReference();
+                ServiceCollection serviceCollection = serviceCollections.get(this);
+                if (serviceCollection == null) {
+                    String msg = String.format("No existing listener matching [%s]",
+                                               reference.getUrl());
+                    logger.trace(msg);
+                    throw new IllegalStateException(msg);
+                }
                 switch (event.getType()) {
                     case REGISTERED:
-                        ServiceCollection serviceCollection = serviceCollections.get(this);
-                        if (serviceCollection == null) {
-                            String msg = String.format("No existing listener matching [%s]",
-                                                       reference.getUrl());
-                            logger.trace(msg);
-                            throw new IllegalStateException(msg);
+                        if (isReconfiguring()) {
+                            record(serviceCollection, event);
+                        } else {
+                            discover(reference, serviceCollection);
                         }
-                        discover(reference, serviceCollection);
                         break;
                     case UNREGISTERED:
                         String msg = String.format("service [%s] has been unregistered after acquisition",
                                                    reference.getUrl());
                         logger.info(msg);
+                        record(serviceCollection, event);
                         break;
                     case MODIFIED:
                         logger.info(String.format("service [%s] has been modified after acquisition",
                                                   reference.getUrl()));
+                        record(serviceCollection, event);
                         break;
                 }
             }
@@ -929,24 +2407,30 @@ public class AutoConfigure {
                     logger.trace(String.format("Ignoring service event for this instance's service"));
                     return;
                 }
+                SingletonService service = singletonServices.get(this);
+                if (service == null) {
+                    String msg = String.format("No existing listener matching [%s]",
+                                               reference.getUrl());
+                    logger.error(msg);
+                    throw new IllegalStateException(msg);
+                }
                 switch (event.getType()) {
                     case REGISTERED:
-                        SingletonService service = singletonServices.get(this);
-                        if (service == null) {
-                            String msg = String.format("No existing listener matching [%s]",
-                                                       reference.getUrl());
-                            logger.error(msg);
-                            throw new IllegalStateException(msg);
+                        if (isReconfiguring()) {
+                            record(service, event);
+                        } else {
+                            discover(reference, service);
                         }
-                        discover(reference, service);
                         break;
                     case UNREGISTERED:
                         logger.info(String.format("service [%s] has been unregistered after acquisition",
                                                   reference.getUrl()));
+                        record(service, event);
                         break;
                     case MODIFIED:
                         logger.info(String.format("service [%s] has been modified after acquisition",
                                                   reference.getUrl()));
+                        record(service, event);
                         break;
                 }
             }
@@ -966,7 +2450,15 @@ public class AutoConfigure {
                     return;
                 }
                 logger.info("All services have been discovered");
+                generated.set(true);
                 try {
+                    // the JMX endpoint is advertised in the same update of
+                    // this service's registration as the properties staged
+                    // while generating the configurations
+                    long started = System.nanoTime();
+                    stageProperty(JmxDiscovery.ENDPOINT_PROPERTY,
+                                  jmxDiscovery.open(bound.get().getAddress()).getServiceURL());
+                    timeline.record(Phase.JMX_START, null, started);
                     generateConfigurations();
                 } catch (Throwable e) {
                     logger.error("Error processing configurations", e);
@@ -974,17 +2466,21 @@ public class AutoConfigure {
                     try {
                         configuredService.fail(generatedConfigurations);
                     } catch (Exception e1) {
-                        logger.error(
-
-                                     "Exception encountered during the running failure action",
+                        logger.error("Exception encountered during the running failure action",
                                      e1);
                     }
+                    configuration.fail(e);
                     return;
                 }
+                long started = System.nanoTime();
                 saveRestartState();
+                timeline.record(Phase.SAVE_RESTART_STATE, null, started);
                 logger.info("Auto configuration successfully completed, running success action");
                 try {
-                    jmxDiscovery.start(bound.get().getAddress());
+                    timeline.mark(Phase.READY, null);
+                    if (logger.isInfoEnabled()) {
+                        logger.info(timeline.report());
+                    }
                     configuredService.succeed(generatedConfigurations);
                     logger.info("Success action completed");
                 } catch (Throwable e) {
@@ -998,8 +2494,52 @@ public class AutoConfigure {
                         logger.error("Exception encountered during the running failure action",
                                      e1);
                     }
+                    configuration.fail(e);
+                    return;
+                }
+                configuration.succeed(generatedConfigurations);
+                synchronized (deferred) {
+                    for (Map.Entry<Map.Entry<Object, UUID>, ServiceEvent> change : deferred.entrySet()) {
+                        changes.submit(change.getKey(), change.getValue());
+                    }
+                    deferred.clear();
+                    configured.set(true);
                 }
+                reconfigure();
             }
         };
     }
+
+    /**
+     * A member of the service collection has been unregistered
+     * 
+     * @param reference
+     *            - the service reference of the unregistered member
+     * @param serviceCollection
+     *            - the service collection definition
+     */
+    protected void unregistered(ServiceReference reference,
+                                ServiceCollection serviceCollection) {
+        if (serviceCollection.remove(reference)) {
+            changed(serviceCollection.variable);
+        }
+    }
+
+    /**
+     * The service singleton has been unregistered. The configurations using
+     * the singleton are not regenerated until a replacement is discovered.
+     * 
+     * @param reference
+     *            - the service reference of the unregistered singleton
+     * @param service
+     *            - the service singleton definition
+     */
+    protected void unregistered(ServiceReference reference,
+                                SingletonService service) {
+        if (service.isDiscovered(reference)) {
+            logger.warn(String.format("Service [%s] is no longer available",
+                                      service));
+            service.undiscover();
+        }
+    }
 }
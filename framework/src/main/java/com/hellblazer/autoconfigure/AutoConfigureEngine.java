@@ -0,0 +1,518 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hellblazer.autoconfigure.BootstrapTimeline.Phase;
+import com.hellblazer.autoconfigure.configuration.Configuration;
+import com.hellblazer.autoconfigure.configuration.JmxConfiguration;
+import com.hellblazer.autoconfigure.jmx.JmxDiscovery;
+import com.hellblazer.gossip.configuration.GossipConfiguration;
+import com.hellblazer.nexus.GossipScope;
+import com.hellblazer.slp.InvalidSyntaxException;
+import com.hellblazer.slp.ServiceEvent;
+import com.hellblazer.slp.ServiceListener;
+import com.hellblazer.slp.ServiceScope;
+import com.hellblazer.utils.LabeledThreadFactory;
+
+/**
+ * Hosts any number of auto configurations within a single process. The hosted
+ * configurations share one discovery scope membership, one timer used to
+ * schedule the cancellation of their rendezvous, one pool used to dispatch
+ * service events to their listeners through a coalescing queue, one bounded
+ * pool used to run their success, failure and restart actions, one fork join
+ * pool used to render their templates in parallel, one limit of the rate of
+ * their registration updates, and one JMX endpoint. The pools are shut down
+ * along with the engine.
+ *
+ * @author hhildebrand
+ *
+ */
+public class AutoConfigureEngine {
+    /**
+     * The number of threads of the default action pool
+     */
+    public static final int                                DEFAULT_ACTION_THREADS = Math.max(4,
+                                                                                             Runtime.getRuntime().availableProcessors());
+
+    private static final Logger                            logger                 = LoggerFactory.getLogger(AutoConfigureEngine.class);
+
+    /**
+     * @return a new bounded pool running the actions of the hosted
+     *         configurations. Idle threads are released.
+     */
+    private static ExecutorService newActionPool() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                                                         DEFAULT_ACTION_THREADS,
+                                                         DEFAULT_ACTION_THREADS,
+                                                         60,
+                                                         TimeUnit.SECONDS,
+                                                         new LinkedBlockingQueue<Runnable>(),
+                                                         new LabeledThreadFactory(
+                                                                                  "Auto Configuration Action Thread"));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private final ExecutorService                          actions;
+    private final ServiceScope                             discovery;
+    private final ExecutorService                          dispatcher;
+    private final EventDispatcher                          events;
+    private final JmxDiscovery                             jmxDiscovery;
+    private final Map<Phase, LatencyHistogram>             latencies;
+    private final Map<String, MultiplexingServiceListener> multiplexers = new HashMap<>();
+    private volatile TokenBucket                           registrations;
+    private final ForkJoinPool                             renderers;
+    private final AtomicBoolean                            running      = new AtomicBoolean(
+                                                                                            true);
+    private final List<AutoConfigure>                      tenants      = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService                 timer;
+    private volatile boolean                               verboseTemplating;
+
+    /**
+     * Construct an engine using a new gossip based discovery scope
+     *
+     * @param gossip
+     *            - the configuration of the gossip instance
+     * @param jmx
+     *            - the configuration of the shared JMX endpoint
+     * @throws SocketException
+     *             - if the discovery scope cannot be constructed
+     */
+    public AutoConfigureEngine(GossipConfiguration gossip, JmxConfiguration jmx)
+                                                                                throws SocketException {
+        this(new GossipScope(gossip.construct()), jmx);
+    }
+
+    /**
+     * Construct an engine
+     *
+     * @param discovery
+     *            - the discovery scope shared by the hosted configurations
+     * @param jmx
+     *            - the configuration of the shared JMX endpoint
+     */
+    public AutoConfigureEngine(ServiceScope discovery, JmxConfiguration jmx) {
+        this(
+             discovery,
+             jmx,
+             Executors.newSingleThreadScheduledExecutor(new LabeledThreadFactory(
+                                                                                 "Auto Configuration Scheduling Thread")),
+             Executors.newSingleThreadExecutor(new LabeledThreadFactory(
+                                                                        "Auto Configuration Dispatch Thread")));
+    }
+
+    /**
+     * Construct an engine
+     *
+     * @param discovery
+     *            - the discovery scope shared by the hosted configurations
+     * @param jmx
+     *            - the configuration of the shared JMX endpoint
+     * @param timer
+     *            - the timer used to schedule rendezvous cancellation
+     * @param dispatcher
+     *            - the executor used to dispatch service events to the
+     *            listeners of the hosted configurations. Note that events are
+     *            delivered in the order they are dispatched only if this
+     *            executor is single threaded.
+     */
+    public AutoConfigureEngine(ServiceScope discovery, JmxConfiguration jmx,
+                               ScheduledExecutorService timer,
+                               ExecutorService dispatcher) {
+        this(
+             discovery,
+             jmx,
+             timer,
+             dispatcher,
+             newActionPool());
+    }
+
+    /**
+     * Construct an engine
+     *
+     * @param discovery
+     *            - the discovery scope shared by the hosted configurations
+     * @param jmx
+     *            - the configuration of the shared JMX endpoint
+     * @param timer
+     *            - the timer used to schedule rendezvous cancellation
+     * @param dispatcher
+     *            - the executor used to dispatch service events to the
+     *            listeners of the hosted configurations. Note that events are
+     *            delivered in the order they are dispatched only if this
+     *            executor is single threaded.
+     * @param actions
+     *            - the executor used to run the success, failure and restart
+     *            actions of the hosted configurations, which generate the
+     *            configurations, write the restart state and start the JMX
+     *            endpoint. Keeps this work off the threads delivering service
+     *            events. The templates are rendered in parallel on a pool owned
+     *            by this engine, shut down along with it.
+     */
+    public AutoConfigureEngine(ServiceScope discovery, JmxConfiguration jmx,
+                               ScheduledExecutorService timer,
+                               ExecutorService dispatcher,
+                               ExecutorService actions) {
+        this(discovery, jmx, timer, dispatcher, actions, new ForkJoinPool());
+    }
+
+    /**
+     * Construct an engine
+     *
+     * @param discovery
+     *            - the discovery scope shared by the hosted configurations
+     * @param jmx
+     *            - the configuration of the shared JMX endpoint
+     * @param timer
+     *            - the timer used to schedule rendezvous cancellation
+     * @param dispatcher
+     *            - the executor used to dispatch service events to the
+     *            listeners of the hosted configurations. Note that events are
+     *            delivered in the order they are dispatched only if this
+     *            executor is single threaded.
+     * @param actions
+     *            - the executor used to run the success, failure and restart
+     *            actions of the hosted configurations
+     * @param renderers
+     *            - the pool used to render the templates of the hosted
+     *            configurations in parallel, shut down along with this engine
+     */
+    public AutoConfigureEngine(ServiceScope discovery, JmxConfiguration jmx,
+                               ScheduledExecutorService timer,
+                               ExecutorService dispatcher,
+                               ExecutorService actions, ForkJoinPool renderers) {
+        this.discovery = discovery;
+        this.timer = timer;
+        this.dispatcher = dispatcher;
+        events = new EventDispatcher(dispatcher,
+                                     EventDispatcher.DEFAULT_CAPACITY);
+        this.actions = actions;
+        this.renderers = renderers;
+        Map<Phase, LatencyHistogram> histograms = new EnumMap<>(Phase.class);
+        for (Phase phase : Phase.values()) {
+            histograms.put(phase, new LatencyHistogram());
+        }
+        latencies = Collections.unmodifiableMap(histograms);
+        jmxDiscovery = new JmxDiscovery(jmx == null ? new JmxConfiguration()
+                                                   : jmx, discovery);
+        this.discovery.start();
+    }
+
+    /**
+     * Add the listener for the services of the service type that match the
+     * properties. A single listener is registered in the discovery scope for
+     * each service type, multiplexing the service events of that type to all
+     * the listeners of the hosted configurations. The events of a listener,
+     * including the replay of the services already known, are delivered by
+     * the event dispatcher, one at a time.
+     *
+     * @param serviceType
+     * @param listener
+     * @param properties
+     * @throws InvalidSyntaxException
+     */
+    public void addServiceListener(String serviceType,
+                                   ServiceListener listener,
+                                   Map<String, String> properties)
+                                                                  throws InvalidSyntaxException {
+        MultiplexingServiceListener multiplexer;
+        synchronized (multiplexers) {
+            multiplexer = multiplexers.get(serviceType);
+            if (multiplexer == null) {
+                // the discovery scope delivers the existing services of the
+                // type to a newly registered listener
+                multiplexer = new MultiplexingServiceListener(serviceType,
+                                                              events);
+                multiplexer.add(listener, properties);
+                discovery.addServiceListener(multiplexer,
+                                             multiplexer.constructFilter());
+                multiplexers.put(serviceType, multiplexer);
+                return;
+            }
+        }
+        // the multiplexer replays the services of the type it already knows
+        // through the dispatcher, ahead of the live events of the listener
+        multiplexer.add(listener, properties);
+    }
+
+    /**
+     * @return the discovery scope shared by the hosted configurations
+     */
+    public ServiceScope getDiscoveryScope() {
+        return discovery;
+    }
+
+    /**
+     * @return the dispatcher of the service events to the listeners of the
+     *         hosted configurations, with its queue depth and lag
+     */
+    public EventDispatcher getEvents() {
+        return events;
+    }
+
+    /**
+     * @return the histograms of the latencies of the bootstrap phases of the
+     *         configurations hosted by this engine
+     */
+    public Map<Phase, LatencyHistogram> getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * @return the currently hosted configurations
+     */
+    public List<AutoConfigure> getTenants() {
+        return new ArrayList<>(tenants);
+    }
+
+    /**
+     * Host a new auto configuration in this engine
+     *
+     * @param config
+     *            - the configuration to host
+     * @return the auto configuration instance hosted by this engine
+     */
+    public AutoConfigure host(Configuration config) {
+        if (!running.get()) {
+            throw new IllegalStateException("Engine has been shut down");
+        }
+        AutoConfigure tenant = new AutoConfigure(config, this, false);
+        tenants.add(tenant);
+        logger.info(String.format("Hosting auto configuration of [%s], %s tenants",
+                                  config.serviceUrl, tenants.size()));
+        return tenant;
+    }
+
+    /**
+     * Remove the listener from the multiplexed listeners of the service type
+     *
+     * @param serviceType
+     * @param listener
+     */
+    public void removeServiceListener(String serviceType,
+                                      ServiceListener listener) {
+        MultiplexingServiceListener multiplexer;
+        synchronized (multiplexers) {
+            multiplexer = multiplexers.get(serviceType);
+        }
+        if (multiplexer != null) {
+            multiplexer.remove(listener);
+        }
+    }
+
+    /**
+     * Limit the rate of the updates of service registrations made by the
+     * hosted configurations. The limit is shared by all the hosted
+     * configurations, so that the process as a whole is throttled. A hosted
+     * configuration with its own registration rate is limited by both.
+     *
+     * @param rate
+     *            - the number of updates permitted per second, or no limit
+     *            if not positive
+     * @param burst
+     *            - the number of updates permitted without waiting
+     */
+    public void setRegistrationRate(double rate, int burst) {
+        registrations = rate > 0 ? new TokenBucket(rate, burst) : null;
+    }
+
+    /**
+     * Turn the verbose processing of templates on or off. The templating flags
+     * are global to StringTemplate, and so are set for the process by the
+     * engine rather than by each hosted configuration. A hosted configuration
+     * requiring verbose templating is rejected unless it has been turned on.
+     *
+     * @param verbose
+     *            - if true, turn on verbose processing of templates
+     */
+    public void setVerboseTemplating(boolean verbose) {
+        verboseTemplating = verbose;
+        AutoConfigure.configureTemplating(verbose);
+    }
+
+    /**
+     * Shut down the engine, releasing all the hosted configurations and the
+     * shared resources
+     */
+    public void shutdown() {
+        if (!running.compareAndSet(true, false)) {
+            return;
+        }
+        for (AutoConfigure tenant : tenants) {
+            tenant.release();
+        }
+        tenants.clear();
+        try {
+            jmxDiscovery.shutdown();
+        } catch (IOException e) {
+            logger.trace("Error shutting down jmx discovery", e);
+        }
+        timer.shutdownNow();
+        dispatcher.shutdownNow();
+        actions.shutdownNow();
+        renderers.shutdownNow();
+        discovery.stop();
+    }
+
+    /**
+     * Answer an action that runs the supplied action using the shared action
+     * pool. An action rejected by the pool, as it is once the engine has been
+     * shut down, is dropped rather than run on the calling thread, which is
+     * the timer or the dispatcher.
+     *
+     * @param action
+     *            - the action to run
+     * @return the action running on the shared pool
+     */
+    Runnable acting(final Runnable action) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    actions.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                action.run();
+                            } catch (Throwable e) {
+                                logger.error("Error running auto configuration action",
+                                             e);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    logger.trace("Action pool has been shut down, dropping action");
+                }
+            }
+        };
+    }
+
+    /**
+     * Remove the tenant from this engine
+     *
+     * @param tenant
+     */
+    void evict(AutoConfigure tenant) {
+        tenants.remove(tenant);
+    }
+
+    JmxDiscovery getJmxDiscovery() {
+        return jmxDiscovery;
+    }
+
+    /**
+     * @return true if verbose processing of templates has been turned on
+     */
+    boolean isVerboseTemplating() {
+        return verboseTemplating;
+    }
+
+    /**
+     * @param serviceType
+     * @return the number of services of the type known to the discovery
+     *         scope, regardless of their properties
+     */
+    int knownCardinalityOf(String serviceType) {
+        MultiplexingServiceListener multiplexer;
+        synchronized (multiplexers) {
+            multiplexer = multiplexers.get(serviceType);
+        }
+        return multiplexer == null ? 0 : multiplexer.getKnownCardinality();
+    }
+
+    /**
+     * Reserve an update of a service registration within the rate limit of
+     * the registration updates
+     *
+     * @return the number of nanoseconds to wait before making the update, 0
+     *         if it may be made now
+     */
+    long reserveRegistration() {
+        TokenBucket bucket = registrations;
+        return bucket == null ? 0 : bucket.reserve();
+    }
+
+    /**
+     * Run the renders in parallel using the shared rendering pool, waiting
+     * for all of them to complete. If the rendering pool has been shut down,
+     * the renders are run on the calling thread.
+     *
+     * @param renders
+     *            - the renders to run
+     * @throws IllegalStateException
+     *             - if any of the renders failed
+     */
+    void render(List<Callable<Void>> renders) {
+        List<Future<Void>> futures;
+        try {
+            futures = renderers.invokeAll(renders);
+        } catch (RejectedExecutionException e) {
+            logger.trace("Rendering pool has been shut down, rendering on the calling thread");
+            for (Callable<Void> render : renders) {
+                try {
+                    render.call();
+                } catch (RuntimeException e1) {
+                    throw e1;
+                } catch (Exception e1) {
+                    throw new IllegalStateException("Error rendering", e1);
+                }
+            }
+            return;
+        }
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while rendering",
+                                                e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException("Error rendering", e.getCause());
+            }
+        }
+    }
+
+    ScheduledExecutorService getTimer() {
+        return timer;
+    }
+}
@@ -111,7 +111,35 @@ public abstract class AutoConfigureService {
                                                                throws Exception;
 
     /**
-     * 
+     * The configuration generated from the template has been rendered, as the
+     * services the template uses have been discovered, before the auto
+     * configuration as a whole has completed. The configuration may be
+     * regenerated should more members of the service collections it uses be
+     * discovered before the auto configuration completes.
+     *
+     * @param name
+     *            - the name of the template
+     * @param configuration
+     *            - the generated configuration file
+     * @throws Exception
+     *             - D'oh!
+     */
+    public void generated(String name, File configuration) throws Exception {
+        // default is to wait for the completion of the auto configuration
+    }
+
+    /**
+     * @return the map of template names to the configuration files whose
+     *         contents were changed by the auto configuration. The
+     *         configuration files whose contents are unchanged from a previous
+     *         auto configuration are not rewritten
+     */
+    public Map<String, File> getChangedConfigurations() {
+        return autoConfigure.getChangedConfigurations();
+    }
+
+    /**
+     *
      * @return the discovery scope used by this process
      */
     public ServiceScope getDiscoveryScope() {
@@ -127,24 +155,46 @@ public abstract class AutoConfigureService {
         return autoConfigure.getServiceReference();
     }
 
+    /**
+     * The configured service's membership has changed after the auto
+     * configuration succeeded, and the configurations using the changed
+     * services have been regenerated. Only called when the configuration is
+     * continuous, and when the contents of at least one configuration file
+     * have changed.
+     * 
+     * @param configurations
+     *            - the map of template names to regenerated configuration
+     *            files whose contents have changed
+     * @throws Exception
+     *             - D'oh!
+     */
+    public void reconfigure(Map<String, File> configurations) throws Exception {
+        // default is to ignore the regeneration
+    }
+
     /**
      * Start the auto configuration service.
+     * 
+     * @return the future outcome of the configuration
      */
-    public void start(long timeout, TimeUnit unit) {
-        start(null, timeout, unit);
+    public ConfigurationFuture start(long timeout, TimeUnit unit) {
+        return start(null, timeout, unit);
     }
 
     /**
      * Start the auto configuration service.
+     * 
+     * @return the future outcome of the configuration
      */
-    public void start(Map<String, String> environment, long timeout,
-                      TimeUnit unit) {
-        autoConfigure.configure(environment, this, timeout, unit);
+    public ConfigurationFuture start(Map<String, String> environment,
+                                     long timeout, TimeUnit unit) {
+        return autoConfigure.configure(environment, this, timeout, unit);
     }
 
     /**
      * The auto configuration has succeeded. The map of configurations contains
-     * the generated configuration files as configured.
+     * the generated configuration files as configured, and
+     * getChangedConfigurations() those whose contents changed.
      * 
      * @param configurations
      *            - the map of template names to generated configuration files
@@ -0,0 +1,187 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The timeline of the phases of the auto configuration of a service. Each
+ * phase is recorded with its offset from the beginning of the configuration
+ * and its duration, using the high resolution time source. Phases nest; the
+ * service registration includes the port allocation, which includes the
+ * selection of the network interface. The discovery of each dependency is
+ * recorded as the time elapsed from the beginning of the configuration until
+ * the dependency was discovered.
+ * <p>
+ * The durations are also recorded in latency histograms per phase, which may
+ * be shared between the timelines of many configurations. The timeline is
+ * closed once the service is ready: the phases completing afterwards, such as
+ * the discoveries of a continuously reconfigured service, are recorded only
+ * in the histograms, so the timeline does not grow for the life of the
+ * process.
+ *
+ * @author hhildebrand
+ *
+ */
+public class BootstrapTimeline {
+    /**
+     * A phase recorded in the timeline
+     */
+    public static class Entry {
+        private final String detail;
+        private final long   duration;
+        private final long   offset;
+        private final Phase  phase;
+
+        public Entry(Phase phase, String detail, long offset, long duration) {
+            this.phase = phase;
+            this.detail = detail;
+            this.offset = offset;
+            this.duration = duration;
+        }
+
+        /**
+         * @return the detail of the phase, such as the dependency discovered
+         *         or the template generated. May be null
+         */
+        public String getDetail() {
+            return detail;
+        }
+
+        /**
+         * @return the duration of the phase, in nanoseconds
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return the offset of the start of the phase from the beginning of
+         *         the configuration, in nanoseconds
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        public Phase getPhase() {
+            return phase;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-20s %-40s +%10.3fms %10.3fms", phase,
+                                 detail == null ? "" : detail,
+                                 offset / 1000000.0, duration / 1000000.0);
+        }
+    }
+
+    /**
+     * The phases of the auto configuration
+     */
+    public static enum Phase {
+        ALLOCATE_PORT, DISCOVER, GENERATE, JMX_START, NETWORK_INTERFACE,
+        READY, REGISTER_SERVICE, RESOLVE_VARIABLES, SAVE_RESTART_STATE,
+        START_JITTER;
+    }
+
+    private final List<Entry>                  entries = new ArrayList<>();
+    private final Map<Phase, LatencyHistogram> latencies;
+    private volatile long                      origin  = System.nanoTime();
+    private volatile boolean                   ready;
+
+    /**
+     * @param latencies
+     *            - the histograms recording the latencies of each phase
+     */
+    public BootstrapTimeline(Map<Phase, LatencyHistogram> latencies) {
+        this.latencies = latencies;
+    }
+
+    /**
+     * Mark the beginning of the configuration
+     */
+    public void begin() {
+        origin = System.nanoTime();
+    }
+
+    /**
+     * @return the phases recorded until the service was ready, in the order
+     *         they completed
+     */
+    public List<Entry> getEntries() {
+        synchronized (entries) {
+            return Collections.unmodifiableList(new ArrayList<>(entries));
+        }
+    }
+
+    /**
+     * Record the milestone of the phase, which completes the interval from
+     * the beginning of the configuration
+     *
+     * @param phase
+     * @param detail
+     */
+    public void mark(Phase phase, String detail) {
+        record(phase, detail, origin);
+    }
+
+    /**
+     * Record the completion of the phase
+     *
+     * @param phase
+     * @param detail
+     *            - the detail of the phase, may be null
+     * @param started
+     *            - the System.nanoTime() the phase started at
+     */
+    public void record(Phase phase, String detail, long started) {
+        long duration = System.nanoTime() - started;
+        LatencyHistogram histogram = latencies.get(phase);
+        if (histogram != null) {
+            histogram.record(duration);
+        }
+        if (ready) {
+            return;
+        }
+        Entry entry = new Entry(phase, detail, started - origin, duration);
+        synchronized (entries) {
+            if (ready) {
+                return;
+            }
+            entries.add(entry);
+            ready = phase == Phase.READY;
+        }
+    }
+
+    /**
+     * @return the report of the timeline, a line per phase recorded
+     */
+    public String report() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Bootstrap timeline:");
+        for (Entry entry : getEntries()) {
+            builder.append('\n').append(entry);
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return report();
+    }
+}
@@ -14,26 +14,215 @@
  */
 package com.hellblazer.autoconfigure;
 
+import java.net.InetSocketAddress;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.stringtemplate.v4.misc.STNoSuchPropertyException;
 
+import com.hellblazer.slp.ServiceScope;
+
 /**
+ * The members of a cluster, as presented to templates. In addition to the
+ * members, the cluster provides views which are computed lazily on first
+ * access and cached thereafter, so that templates rendering large clusters
+ * may use them in constant time per access:
+ * <ul>
+ * <li>groupBy - the members grouped by the value of a property, e.g.
+ * &lt;cluster.groupBy.rack.(r).members&gt;</li>
+ * <li>sortedBy - the members sorted by the value of a property, e.g.
+ * &lt;cluster.sortedBy.port.members&gt;</li>
+ * <li>others - the members, excluding the configured service</li>
+ * <li>endpoints - the comma separated host:port of the members</li>
+ * <li>byId - the members, keyed by their id property</li>
+ * </ul>
+ * The properties of a member are its host, port and, for services, the
+ * properties of the service. The members of a cluster must not be modified
+ * once the cluster is constructed.
  * 
  * @author hal.hildebrand
  * 
  */
 public class Cluster<T> {
+	/**
+	 * A map computing the values of its keys on demand, and caching them.
+	 * Every key is considered to be contained, so that ST will consult the
+	 * view for any property name.
+	 */
+	private abstract static class View<V> extends AbstractMap<String, V> {
+		private final ConcurrentMap<String, V> computed = new ConcurrentHashMap<>();
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof String;
+		}
+
+		@Override
+		public Set<Map.Entry<String, V>> entrySet() {
+			return Collections.unmodifiableMap(computed).entrySet();
+		}
+
+		@Override
+		public V get(Object key) {
+			if (!(key instanceof String)) {
+				return null;
+			}
+			V value = computed.get(key);
+			if (value == null) {
+				value = compute((String) key);
+				V existing = computed.putIfAbsent((String) key, value);
+				if (existing != null) {
+					value = existing;
+				}
+			}
+			return value;
+		}
+
+		abstract V compute(String property);
+	}
+
+	/**
+	 * Answer the value of the property of the cluster member
+	 * 
+	 * @param member
+	 * @param property
+	 * @return the value of the property, or null if the member does not have
+	 *         the property
+	 */
+	public static String propertyOf(Object member, String property) {
+		if (member instanceof Service) {
+			Service service = (Service) member;
+			switch (property) {
+			case "port":
+				return String.valueOf(service.getPort());
+			case "host":
+				return service.getHost();
+			default:
+				return service.getProperties().get(property);
+			}
+		}
+		if (member instanceof InetSocketAddress) {
+			InetSocketAddress address = (InetSocketAddress) member;
+			switch (property) {
+			case "port":
+				return String.valueOf(address.getPort());
+			case "host":
+				return address.getHostName();
+			}
+		}
+		return null;
+	}
+
+	private static int compare(String a, String b) {
+		if (a == null) {
+			return b == null ? 0 : 1;
+		}
+		if (b == null) {
+			return -1;
+		}
+		try {
+			return Long.compare(Long.parseLong(a), Long.parseLong(b));
+		} catch (NumberFormatException e) {
+			return a.compareTo(b);
+		}
+	}
+
+	private volatile Map<String, T> byId;
 	private final List<T> cluster;
+	private volatile String endpoints;
+	private final View<Map<String, Cluster<T>>> groupBy = new View<Map<String, Cluster<T>>>() {
+		@Override
+		Map<String, Cluster<T>> compute(String property) {
+			return group(property);
+		}
+	};
+	private final String idProperty;
+	private volatile Cluster<T> others;
+	private final String self;
+	private final View<Cluster<T>> sortedBy = new View<Cluster<T>>() {
+		@Override
+		Cluster<T> compute(String property) {
+			return sort(property);
+		}
+	};
 
 	public Cluster(List<T> cluster) {
+		this(cluster, ServiceScope.SERVICE_REGISTRATION, null);
+	}
+
+	/**
+	 * @param cluster
+	 *            - the members of the cluster
+	 * @param idProperty
+	 *            - the property identifying the members of the cluster
+	 * @param self
+	 *            - the service registration of the configured service, may be
+	 *            null
+	 */
+	public Cluster(List<T> cluster, String idProperty, String self) {
 		this.cluster = cluster;
+		this.idProperty = idProperty;
+		this.self = self;
+	}
+
+	/**
+	 * @return the members of the cluster, keyed by the value of their id
+	 *         property
+	 */
+	public Map<String, T> getById() {
+		Map<String, T> view = byId;
+		if (view == null) {
+			Map<String, T> members = new HashMap<>();
+			for (T member : cluster) {
+				String id = propertyOf(member, idProperty);
+				if (id != null) {
+					members.put(id, member);
+				}
+			}
+			view = Collections.unmodifiableMap(members);
+			byId = view;
+		}
+		return view;
 	}
 
 	public int getCardinality() {
 		return cluster.size();
 	}
 
+	/**
+	 * @return the comma separated host:port endpoints of the members of the
+	 *         cluster
+	 */
+	public String getEndpoints() {
+		String view = endpoints;
+		if (view == null) {
+			StringBuilder builder = new StringBuilder();
+			for (T member : cluster) {
+				String host = propertyOf(member, "host");
+				if (host == null) {
+					continue;
+				}
+				if (builder.length() > 0) {
+					builder.append(',');
+				}
+				builder.append(host).append(':')
+						.append(propertyOf(member, "port"));
+			}
+			view = builder.toString();
+			endpoints = view;
+		}
+		return view;
+	}
+
 	public T getFirst() {
 		if (cluster.isEmpty()) {
 			throw new STNoSuchPropertyException(null, this, "first");
@@ -41,12 +230,98 @@ public class Cluster<T> {
 		return cluster.get(0);
 	}
 
+	/**
+	 * @return the map of property names to the members grouped by the value
+	 *         of that property, ordered by value. Members without the
+	 *         property are omitted
+	 */
+	public Map<String, Map<String, Cluster<T>>> getGroupBy() {
+		return groupBy;
+	}
+
 	public List<T> getMembers() {
 		return cluster;
 	}
-	
+
+	/**
+	 * @return the cluster of the members, excluding the configured service
+	 */
+	public Cluster<T> getOthers() {
+		Cluster<T> view = others;
+		if (view == null) {
+			if (self == null) {
+				view = this;
+			} else {
+				List<T> members = new ArrayList<>(cluster.size());
+				for (T member : cluster) {
+					if (!self.equals(propertyOf(member,
+							ServiceScope.SERVICE_REGISTRATION))) {
+						members.add(member);
+					}
+				}
+				view = members.size() == cluster.size() ? this : derive(members);
+			}
+			others = view;
+		}
+		return view;
+	}
+
+	/**
+	 * @return the map of property names to the cluster sorted by the value of
+	 *         that property. Numeric values are ordered numerically, and
+	 *         members without the property are ordered last
+	 */
+	public Map<String, Cluster<T>> getSortedBy() {
+		return sortedBy;
+	}
+
 	@Override
 	public String toString() {
 		return String.format("Cluster%s", cluster);
 	}
+
+	/**
+	 * @return the service registration of the configured service, or null
+	 */
+	String getSelf() {
+		return self;
+	}
+
+	private Cluster<T> derive(List<T> members) {
+		return new Cluster<>(Collections.unmodifiableList(members), idProperty,
+				self);
+	}
+
+	private Map<String, Cluster<T>> group(String property) {
+		Map<String, List<T>> groups = new TreeMap<>();
+		for (T member : cluster) {
+			String value = propertyOf(member, property);
+			if (value == null) {
+				continue;
+			}
+			List<T> members = groups.get(value);
+			if (members == null) {
+				members = new ArrayList<>();
+				groups.put(value, members);
+			}
+			members.add(member);
+		}
+		Map<String, Cluster<T>> grouped = new TreeMap<>();
+		for (Map.Entry<String, List<T>> entry : groups.entrySet()) {
+			grouped.put(entry.getKey(), derive(entry.getValue()));
+		}
+		return Collections.unmodifiableMap(grouped);
+	}
+
+	private Cluster<T> sort(final String property) {
+		List<T> members = new ArrayList<>(cluster);
+		Collections.sort(members, new Comparator<T>() {
+			@Override
+			public int compare(T a, T b) {
+				return Cluster.compare(propertyOf(a, property),
+						propertyOf(b, property));
+			}
+		});
+		return derive(members);
+	}
 }
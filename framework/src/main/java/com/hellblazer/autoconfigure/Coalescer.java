@@ -0,0 +1,230 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces a burst of changes into a single batch. Only the latest change
+ * submitted for a key is retained. The batch is processed once no change has
+ * been submitted for the length of the window, or once the oldest change of
+ * the batch has waited for the maximum delay, whichever comes first. The
+ * timer only schedules the processing of the batch, which is handed off to
+ * the executor, so a lengthy batch never delays the timer's other tasks.
+ *
+ * @author hhildebrand
+ *
+ */
+public class Coalescer<K, V> {
+    /**
+     * The processing of the coalesced changes
+     */
+    public interface Batch<K, V> {
+        /**
+         * Process the batch of changes
+         *
+         * @param changes
+         *            - the latest change of each key, in the order the keys
+         *            were first changed
+         * @param absorbed
+         *            - the number of changes submitted to the batch
+         */
+        void process(Map<K, V> changes, int absorbed);
+    }
+
+    private static final Logger            logger     = LoggerFactory.getLogger(Coalescer.class);
+
+    private int                            absorbed;
+    private final Batch<K, V>              batch;
+    private final AtomicLong               batches    = new AtomicLong();
+    private final AtomicLong               events     = new AtomicLong();
+    private final Executor                 executor;
+    private long                           firstChange;
+    private volatile int                   lastAbsorbed;
+    private volatile int                   maxAbsorbed;
+    private final long                     maxDelay;
+    private LinkedHashMap<K, V>            pending    = new LinkedHashMap<>();
+    private final Object                   processing = new Object();
+    private ScheduledFuture<?>             scheduled;
+    private final ScheduledExecutorService timer;
+    private final long                     window;
+
+    /**
+     * @param window
+     *            - the quiet period, in milliseconds, after which the batch is
+     *            processed. If 0, each change is processed as it is submitted
+     * @param maxDelay
+     *            - the maximum time, in milliseconds, a change waits before
+     *            the batch is processed. If 0, the wait is bounded only by
+     *            the window
+     * @param timer
+     *            - the timer used to schedule the processing of the batch
+     * @param executor
+     *            - the executor processing the batches
+     * @param batch
+     *            - the processing of the coalesced changes
+     */
+    public Coalescer(long window, long maxDelay,
+                     ScheduledExecutorService timer, Executor executor,
+                     Batch<K, V> batch) {
+        this.window = TimeUnit.MILLISECONDS.toNanos(window);
+        this.maxDelay = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+        this.timer = timer;
+        this.executor = executor;
+        this.batch = batch;
+    }
+
+    /**
+     * Process the pending changes now, on the calling thread
+     */
+    public void flush() {
+        synchronized (processing) {
+            Map<K, V> changes;
+            int count;
+            synchronized (this) {
+                if (scheduled != null) {
+                    scheduled.cancel(false);
+                    scheduled = null;
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                changes = pending;
+                count = absorbed;
+                pending = new LinkedHashMap<>();
+                absorbed = 0;
+            }
+            batches.incrementAndGet();
+            lastAbsorbed = count;
+            if (count > maxAbsorbed) {
+                maxAbsorbed = count;
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("Processing %s changes coalesced from %s events",
+                                           changes.size(), count));
+            }
+            batch.process(changes, count);
+        }
+    }
+
+    /**
+     * @return the number of batches processed
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * @return the total number of changes submitted
+     */
+    public long getEvents() {
+        return events.get();
+    }
+
+    /**
+     * @return the number of changes absorbed by the last processed batch
+     */
+    public int getLastAbsorbed() {
+        return lastAbsorbed;
+    }
+
+    /**
+     * @return the largest number of changes absorbed by a processed batch
+     */
+    public int getMaxAbsorbed() {
+        return maxAbsorbed;
+    }
+
+    /**
+     * @return the number of changes waiting to be processed
+     */
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Submit the change of the key, replacing any pending change of the key
+     *
+     * @param key
+     * @param change
+     */
+    public void submit(K key, V change) {
+        events.incrementAndGet();
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (pending.isEmpty()) {
+                firstChange = now;
+            }
+            pending.put(key, change);
+            absorbed++;
+            long delay = window;
+            if (maxDelay > 0) {
+                delay = Math.min(delay,
+                                 Math.max(0, firstChange + maxDelay - now));
+            }
+            if (delay > 0) {
+                if (scheduled != null) {
+                    scheduled.cancel(false);
+                }
+                try {
+                    scheduled = timer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            process();
+                        }
+                    }, delay, TimeUnit.NANOSECONDS);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    logger.trace("Timer has been shut down, processing changes immediately");
+                }
+            }
+        }
+        process();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Coalescer [batches=%s, events=%s, last=%s, max=%s]",
+                             batches.get(), events.get(), lastAbsorbed,
+                             maxAbsorbed);
+    }
+
+    /**
+     * Hand off the processing of the pending changes to the executor
+     */
+    private void process() {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.trace("Executor has been shut down, processing changes on the calling thread");
+            flush();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The outcome of an auto configuration. The future completes with the map of
+ * template names to generated configuration files when the configuration
+ * succeeds, and exceptionally when it fails. Callbacks may be added to compose
+ * the configuration of several services without blocking a thread for each.
+ *
+ * @author hhildebrand
+ *
+ */
+public class ConfigurationFuture implements Future<Map<String, File>> {
+    /**
+     * A callback notified when the configuration completes
+     */
+    public interface Callback {
+        /**
+         * The configuration has failed or has been cancelled
+         *
+         * @param cause
+         *            - the cause of the failure, a CancellationException if
+         *            the configuration has been cancelled
+         */
+        void failed(Throwable cause);
+
+        /**
+         * The configuration has succeeded
+         *
+         * @param configurations
+         *            - the map of template names to generated configuration
+         *            files
+         */
+        void succeeded(Map<String, File> configurations);
+    }
+
+    private static final Logger  logger    = LoggerFactory.getLogger(ConfigurationFuture.class);
+
+    private final List<Callback> callbacks = new ArrayList<>();
+    private final Runnable       cancellation;
+    private Throwable            cause;
+    private Map<String, File>    configurations;
+    private final CountDownLatch done      = new CountDownLatch(1);
+
+    /**
+     * @param cancellation
+     *            - the action run when the configuration is cancelled
+     */
+    public ConfigurationFuture(Runnable cancellation) {
+        this.cancellation = cancellation;
+    }
+
+    /**
+     * Add the callback to be notified when the configuration completes. If the
+     * configuration has already completed, the callback is notified
+     * immediately, on the calling thread. Otherwise the callback is notified
+     * on the thread completing the configuration.
+     *
+     * @param callback
+     */
+    public void addCallback(Callback callback) {
+        synchronized (this) {
+            if (!isDone()) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        inform(callback);
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#cancel(boolean)
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!complete(null,
+                      new CancellationException("Auto configuration cancelled"))) {
+            return false;
+        }
+        cancellation.run();
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#get()
+     */
+    @Override
+    public Map<String, File> get() throws InterruptedException,
+                                  ExecutionException {
+        done.await();
+        return outcome();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+     */
+    @Override
+    public Map<String, File> get(long timeout, TimeUnit unit)
+                                                             throws InterruptedException,
+                                                             ExecutionException,
+                                                             TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("Auto configuration has not completed");
+        }
+        return outcome();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#isCancelled()
+     */
+    @Override
+    public synchronized boolean isCancelled() {
+        return cause instanceof CancellationException;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#isDone()
+     */
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public String toString() {
+        if (!isDone()) {
+            return "Configuration [pending]";
+        }
+        synchronized (this) {
+            return cause == null ? String.format("Configuration [succeeded] %s",
+                                                 configurations)
+                                : String.format("Configuration [failed] %s",
+                                                cause);
+        }
+    }
+
+    /**
+     * Complete the configuration exceptionally
+     *
+     * @param cause
+     * @return true if this call completed the configuration
+     */
+    boolean fail(Throwable cause) {
+        return complete(null, cause);
+    }
+
+    /**
+     * Complete the configuration successfully
+     *
+     * @param configurations
+     * @return true if this call completed the configuration
+     */
+    boolean succeed(Map<String, File> configurations) {
+        return complete(Collections.unmodifiableMap(new HashMap<>(
+                                                                  configurations)),
+                        null);
+    }
+
+    private boolean complete(Map<String, File> configurations, Throwable cause) {
+        List<Callback> completed;
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            this.configurations = configurations;
+            this.cause = cause;
+            completed = new ArrayList<>(callbacks);
+            callbacks.clear();
+            done.countDown();
+        }
+        for (Callback callback : completed) {
+            inform(callback);
+        }
+        return true;
+    }
+
+    private void inform(Callback callback) {
+        Map<String, File> configurations;
+        Throwable cause;
+        synchronized (this) {
+            configurations = this.configurations;
+            cause = this.cause;
+        }
+        try {
+            if (cause == null) {
+                callback.succeeded(configurations);
+            } else {
+                callback.failed(cause);
+            }
+        } catch (Throwable e) {
+            logger.error(String.format("Error notifying configuration callback %s",
+                                       callback), e);
+        }
+    }
+
+    private synchronized Map<String, File> outcome() throws ExecutionException {
+        if (cause instanceof CancellationException) {
+            throw (CancellationException) cause;
+        }
+        if (cause != null) {
+            throw new ExecutionException(cause);
+        }
+        return configurations;
+    }
+}
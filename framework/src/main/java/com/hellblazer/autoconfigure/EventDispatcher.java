@@ -0,0 +1,270 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hellblazer.slp.ServiceEvent;
+import com.hellblazer.slp.ServiceEvent.EventType;
+import com.hellblazer.slp.ServiceListener;
+
+/**
+ * Dispatches service events to their listeners on an executor, keeping the
+ * processing of the events off the threads of the discovery scope. Events
+ * pending delivery are queued per listener and service registration, and an
+ * event is coalesced with the pending event of its registration: a
+ * modification is folded into the pending registration or modification, and
+ * an unregistration replaces them. The listener thus receives the latest
+ * state of each registration, in the order the registrations first became
+ * pending.
+ * <p>
+ * The queue holds at most the capacity of registrations, and the discovery
+ * thread dispatching the event of a new registration waits while the queue is
+ * full. Events are delivered by a single drain of the queue at a time, so the
+ * executor may be shared.
+ *
+ * @author hhildebrand
+ *
+ */
+public class EventDispatcher {
+    private static class Key {
+        private final ServiceListener listener;
+        private final UUID            registration;
+
+        private Key(ServiceListener listener, UUID registration) {
+            this.listener = listener;
+            this.registration = registration;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return listener == other.listener
+                   && registration.equals(other.registration);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(listener) * 31
+                   + registration.hashCode();
+        }
+    }
+
+    private static class Pending {
+        private final long               enqueued = System.nanoTime();
+        private final List<ServiceEvent> events   = new ArrayList<>(2);
+    }
+
+    public static final int     DEFAULT_CAPACITY = 10000;
+
+    private static final Logger logger           = LoggerFactory.getLogger(EventDispatcher.class);
+
+    /**
+     * Coalesce the next event of a registration with its last pending event
+     *
+     * @param last
+     * @param next
+     * @return the coalesced event, or null if the events cannot be coalesced
+     */
+    static ServiceEvent coalesce(ServiceEvent last, ServiceEvent next) {
+        if (last.getType() == EventType.UNREGISTERED) {
+            return null;
+        }
+        switch (next.getType()) {
+            case MODIFIED:
+                return new ServiceEvent(last.getType(), next.getReference());
+            case UNREGISTERED:
+                return next;
+            default:
+                return null;
+        }
+    }
+
+    private final int                         capacity;
+    private final AtomicLong                  coalesced = new AtomicLong();
+    private final AtomicLong                  delivered = new AtomicLong();
+    private boolean                           draining;
+    private final Executor                    executor;
+    private final LatencyHistogram            lag       = new LatencyHistogram();
+    private final LinkedHashMap<Key, Pending> pending   = new LinkedHashMap<>();
+
+    /**
+     * @param executor
+     *            - the executor delivering the events
+     * @param capacity
+     *            - the maximum number of registrations with pending events
+     */
+    public EventDispatcher(Executor executor, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(
+                                               String.format("Capacity must be at least 1: %s",
+                                                             capacity));
+        }
+        this.executor = executor;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Dispatch the event to the listener, coalescing it with the pending
+     * event of its registration. Waits while the queue is full.
+     *
+     * @param listener
+     * @param event
+     */
+    public void dispatch(ServiceListener listener, ServiceEvent event) {
+        Key key = new Key(listener,
+                          AutoConfigure.registrationOf(event.getReference()));
+        synchronized (this) {
+            Pending entry = pending.get(key);
+            if (entry != null) {
+                append(entry, event);
+                return;
+            }
+            while (pending.size() >= capacity) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug(String.format("Event dispatch queue is full, %s registrations pending",
+                                               pending.size()));
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    logger.warn(String.format("Interrupted while dispatching, dropping service event for [%s]",
+                                              event.getReference().getUrl()));
+                    return;
+                }
+                entry = pending.get(key);
+                if (entry != null) {
+                    // the registration became pending while waiting
+                    append(entry, event);
+                    return;
+                }
+            }
+            entry = new Pending();
+            entry.events.add(event);
+            pending.put(key, entry);
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.trace("Dispatcher has been shut down, dropping service events");
+            synchronized (this) {
+                pending.clear();
+                draining = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the number of events coalesced with pending events
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of events delivered to their listeners
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return the histogram of the time the registrations were pending, from
+     *         their first pending event until their events were delivered
+     */
+    public LatencyHistogram getLag() {
+        return lag;
+    }
+
+    /**
+     * @return the number of registrations with events pending delivery
+     */
+    public synchronized int getQueueDepth() {
+        return pending.size();
+    }
+
+    /**
+     * Append the event to the pending events of its registration, coalescing
+     * it with the last pending event if possible
+     *
+     * @param entry
+     * @param event
+     */
+    private void append(Pending entry, ServiceEvent event) {
+        int last = entry.events.size() - 1;
+        ServiceEvent merged = coalesce(entry.events.get(last), event);
+        if (merged == null) {
+            entry.events.add(event);
+        } else {
+            entry.events.set(last, merged);
+            coalesced.incrementAndGet();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Key key;
+            Pending entry;
+            synchronized (this) {
+                Iterator<Map.Entry<Key, Pending>> next = pending.entrySet().iterator();
+                if (!next.hasNext()) {
+                    draining = false;
+                    return;
+                }
+                Map.Entry<Key, Pending> head = next.next();
+                next.remove();
+                notifyAll();
+                key = head.getKey();
+                entry = head.getValue();
+            }
+            lag.record(System.nanoTime() - entry.enqueued);
+            for (ServiceEvent event : entry.events) {
+                try {
+                    key.listener.serviceChanged(event);
+                } catch (Throwable e) {
+                    logger.error(String.format("Error dispatching service event for [%s]",
+                                               event.getReference().getUrl()),
+                                 e);
+                }
+                delivered.incrementAndGet();
+            }
+        }
+    }
+}
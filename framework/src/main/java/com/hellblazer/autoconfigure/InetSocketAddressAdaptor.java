@@ -35,14 +35,15 @@ public class InetSocketAddressAdaptor implements ModelAdaptor {
                               Object property, String propertyName)
             throws STNoSuchPropertyException {
         InetSocketAddress address = (InetSocketAddress) o;
-        if (propertyName.equals("port")) {
-            return address.getPort();
+        switch (propertyName) {
+            case "port":
+                return address.getPort();
+            case "host":
+                // adapt hostName -> host
+                return address.getHostName();
+            default:
+                throw new STNoSuchPropertyException(null, o, propertyName);
         }
-        // adapt hostName -> host
-        if (propertyName.equals("host")) {
-            return address.getHostName();
-        }
-        throw new STNoSuchPropertyException(null, o, propertyName);
     }
 
 }
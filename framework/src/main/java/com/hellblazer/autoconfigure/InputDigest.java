@@ -0,0 +1,120 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A canonical digest of the inputs of a template. Equal inputs produce equal
+ * digests, regardless of the iteration order of the maps supplied, so the
+ * digest identifies the rendering of the template.
+ *
+ * @author hhildebrand
+ *
+ */
+class InputDigest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final MessageDigest  digest;
+
+    InputDigest(String algorithm) {
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(
+                                            String.format("Digest algorithm %s is not available",
+                                                          algorithm), e);
+        }
+    }
+
+    /**
+     * Add the named input
+     *
+     * @param name
+     * @param value
+     * @return this digest
+     */
+    InputDigest add(String name, Object value) {
+        update(name);
+        canonicalize(value);
+        return this;
+    }
+
+    /**
+     * @return the hexadecimal representation of the digest of the inputs
+     *         added
+     */
+    String toHex() {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest.digest()) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    private void canonicalize(Object value) {
+        if (value == null) {
+            update("null");
+        } else if (value instanceof Cluster) {
+            update("cluster");
+            update(String.valueOf(((Cluster<?>) value).getSelf()));
+            canonicalize(((Cluster<?>) value).getMembers());
+        } else if (value instanceof Service) {
+            Service service = (Service) value;
+            update("service");
+            update(String.valueOf(service.getServiceUrl()));
+            canonicalize(service.getProperties());
+        } else if (value instanceof Map) {
+            Map<String, Object> sorted = new TreeMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            update("map");
+            digest.update(ByteBuffer.allocate(4).putInt(sorted.size()).array());
+            for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+                update(entry.getKey());
+                canonicalize(entry.getValue());
+            }
+        } else if (value instanceof Iterable) {
+            update("list");
+            for (Object element : (Iterable<?>) value) {
+                update("element");
+                canonicalize(element);
+            }
+            update("end");
+        } else if (value instanceof Object[]) {
+            canonicalize(Arrays.asList((Object[]) value));
+        } else if (value instanceof File) {
+            update("file");
+            update(((File) value).getAbsolutePath());
+        } else {
+            update(value.getClass().getName());
+            update(value.toString());
+        }
+    }
+
+    private void update(String token) {
+        byte[] bytes = token.getBytes(UTF_8);
+        digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+        digest.update(bytes);
+    }
+}
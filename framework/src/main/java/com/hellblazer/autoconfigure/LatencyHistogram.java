@@ -0,0 +1,128 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies. The latencies are counted in buckets
+ * whose upper bounds are successive powers of two microseconds, so
+ * percentiles are reported with a precision of a factor of two.
+ *
+ * @author hhildebrand
+ *
+ */
+public class LatencyHistogram {
+    private static final int      BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong      count   = new AtomicLong();
+    private final AtomicLong      max     = new AtomicLong();
+    private final AtomicLong      total   = new AtomicLong();
+
+    /**
+     * @return the number of latencies recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the largest latency recorded, in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the mean latency recorded, in nanoseconds
+     */
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / n;
+    }
+
+    /**
+     * Answer the upper bound of the latency of the percentile of the recorded
+     * latencies
+     *
+     * @param percentile
+     *            - the percentile, between 0 and 100
+     * @return the upper bound, in nanoseconds, of the latency of the
+     *         percentile
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException(
+                                               String.format("Invalid percentile: %s",
+                                                             percentile));
+        }
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(n * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(max.get(), upperBound(i));
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Record the latency
+     *
+     * @param nanos
+     *            - the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long latency = Math.max(0, nanos);
+        buckets.incrementAndGet(bucketOf(latency));
+        count.incrementAndGet();
+        total.addAndGet(latency);
+        long current = max.get();
+        while (latency > current && !max.compareAndSet(current, latency)) {
+            current = max.get();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%s mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms",
+                             getCount(), millis(getMean()),
+                             millis(getPercentile(50)),
+                             millis(getPercentile(90)),
+                             millis(getPercentile(99)), millis(getMax()));
+    }
+
+    private int bucketOf(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    private long upperBound(int bucket) {
+        return TimeUnit.MICROSECONDS.toNanos(1L << bucket);
+    }
+}
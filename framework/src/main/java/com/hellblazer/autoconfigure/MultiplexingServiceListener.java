@@ -0,0 +1,416 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hellblazer.slp.ServiceEvent;
+import com.hellblazer.slp.ServiceListener;
+import com.hellblazer.slp.ServiceReference;
+
+/**
+ * A single listener registered in the discovery scope for a service type,
+ * which routes the service events of that type to the listeners whose property
+ * constraints match the properties of the event's service. The routes are
+ * found through an index of the constrained property values, so the cost of
+ * routing an event is proportional to the number of properties of the event
+ * rather than to the number of routed listeners. The index is updated
+ * incrementally as listeners are added and removed.
+ * <p>
+ * Property constraints have the semantics of the equality terms of an LDAP
+ * filter: a value without "*" is an equality match, and each "*" of a value
+ * matches any sequence of characters, so "a*" matches any value starting with
+ * "a", and "*" matches any service that has the property. Equality matches
+ * are found through the index, and substring matches are evaluated only for
+ * the services that have the constrained property.
+ * <p>
+ * The routed events, live and replayed, are delivered through the event
+ * dispatcher, if one is supplied, keyed by the routed listener. A listener
+ * thus receives all of its events, whether replayed when it is added or
+ * routed from the discovery scope, one at a time on the dispatcher, in the
+ * order they are routed. Without a dispatcher the events are delivered on
+ * the thread routing them.
+ *
+ * @author hhildebrand
+ *
+ */
+public class MultiplexingServiceListener implements ServiceListener {
+    private static class Index {
+        private final Map<String, Map<String, List<Route>>> constrained   = new HashMap<>();
+        private final Map<ServiceListener, List<Route>>     routes        = new IdentityHashMap<>();
+        private int                                         size;
+        private final Map<String, List<Route>>              substrings    = new HashMap<>();
+        private final List<Route>                           unconstrained = new ArrayList<>();
+
+        private void add(Route route) {
+            List<Route> listened = routes.get(route.listener);
+            if (listened == null) {
+                listened = new ArrayList<>(1);
+                routes.put(route.listener, listened);
+            }
+            listened.add(route);
+            size++;
+            if (route.properties.isEmpty()) {
+                unconstrained.add(route);
+                return;
+            }
+            for (Map.Entry<String, String> entry : route.properties.entrySet()) {
+                if (route.substrings.containsKey(entry.getKey())) {
+                    routesOf(substrings, entry.getKey()).add(route);
+                    continue;
+                }
+                Map<String, List<Route>> byValue = constrained.get(entry.getKey());
+                if (byValue == null) {
+                    byValue = new HashMap<>();
+                    constrained.put(entry.getKey(), byValue);
+                }
+                routesOf(byValue, entry.getValue()).add(route);
+            }
+        }
+
+        private List<Route> match(Map<String, String> properties) {
+            List<Route> matched = new ArrayList<>(unconstrained);
+            if (properties == null || size == unconstrained.size()) {
+                return matched;
+            }
+            Map<Route, int[]> hits = new IdentityHashMap<>();
+            for (Map.Entry<String, String> entry : properties.entrySet()) {
+                Map<String, List<Route>> byValue = constrained.get(entry.getKey());
+                if (byValue != null) {
+                    hit(hits, byValue.get(entry.getValue()));
+                }
+                List<Route> patterns = substrings.get(entry.getKey());
+                if (patterns != null) {
+                    for (Route route : patterns) {
+                        if (route.matches(entry.getKey(), entry.getValue())) {
+                            hit(hits, route);
+                        }
+                    }
+                }
+            }
+            for (Map.Entry<Route, int[]> entry : hits.entrySet()) {
+                if (entry.getValue()[0] == entry.getKey().properties.size()) {
+                    matched.add(entry.getKey());
+                }
+            }
+            return matched;
+        }
+
+        private boolean remove(ServiceListener listener) {
+            List<Route> removed = routes.remove(listener);
+            if (removed == null) {
+                return false;
+            }
+            for (Route route : removed) {
+                size--;
+                if (route.properties.isEmpty()) {
+                    unconstrained.remove(route);
+                    continue;
+                }
+                for (Map.Entry<String, String> entry : route.properties.entrySet()) {
+                    if (route.substrings.containsKey(entry.getKey())) {
+                        unroute(substrings, entry.getKey(), route);
+                    } else {
+                        Map<String, List<Route>> byValue = constrained.get(entry.getKey());
+                        unroute(byValue, entry.getValue(), route);
+                        if (byValue.isEmpty()) {
+                            constrained.remove(entry.getKey());
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+
+        private void hit(Map<Route, int[]> hits, List<Route> routes) {
+            if (routes == null) {
+                return;
+            }
+            for (Route route : routes) {
+                hit(hits, route);
+            }
+        }
+
+        private void hit(Map<Route, int[]> hits, Route route) {
+            int[] count = hits.get(route);
+            if (count == null) {
+                count = new int[1];
+                hits.put(route, count);
+            }
+            count[0]++;
+        }
+
+        private List<Route> routesOf(Map<String, List<Route>> routes,
+                                     String key) {
+            List<Route> list = routes.get(key);
+            if (list == null) {
+                list = new ArrayList<>();
+                routes.put(key, list);
+            }
+            return list;
+        }
+
+        private void unroute(Map<String, List<Route>> routes, String key,
+                             Route route) {
+            List<Route> list = routes.get(key);
+            list.remove(route);
+            if (list.isEmpty()) {
+                routes.remove(key);
+            }
+        }
+    }
+
+    private static class Member {
+        private final ServiceEvent registered;
+        private ServiceEvent       modified;
+
+        private Member(ServiceEvent registered) {
+            this.registered = registered;
+        }
+    }
+
+    private static class Route {
+        /**
+         * The events routed while the known members are being replayed to
+         * the listener, guarded by the multiplexer. Null once the route is
+         * live.
+         */
+        private List<ServiceEvent>          backlog;
+        private final ServiceListener       listener;
+        private final Map<String, String>   properties;
+        private final Map<String, String[]> substrings = new HashMap<>();
+
+        private Route(ServiceListener listener, Map<String, String> properties) {
+            this.listener = listener;
+            this.properties = properties;
+            for (Map.Entry<String, String> entry : properties.entrySet()) {
+                if (entry.getValue().indexOf('*') >= 0) {
+                    substrings.put(entry.getKey(),
+                                   entry.getValue().split("\\*", -1));
+                }
+            }
+        }
+
+        private boolean matches(Map<String, String> serviceProperties) {
+            for (Map.Entry<String, String> entry : properties.entrySet()) {
+                String value = serviceProperties == null ? null
+                                                        : serviceProperties.get(entry.getKey());
+                if (value == null || !matches(entry.getKey(), value)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean matches(String key, String value) {
+            String[] pieces = substrings.get(key);
+            if (pieces == null) {
+                return properties.get(key).equals(value);
+            }
+            if (!value.startsWith(pieces[0])) {
+                return false;
+            }
+            int position = pieces[0].length();
+            int last = pieces.length - 1;
+            for (int i = 1; i < last; i++) {
+                int found = value.indexOf(pieces[i], position);
+                if (found < 0) {
+                    return false;
+                }
+                position = found + pieces[i].length();
+            }
+            return value.length() - position >= pieces[last].length()
+                   && value.endsWith(pieces[last]);
+        }
+    }
+
+    public static final String      PRESENT = "*";
+
+    private static final Logger     logger  = LoggerFactory.getLogger(MultiplexingServiceListener.class);
+
+    private final EventDispatcher   dispatcher;
+    private final Index             index   = new Index();
+    private final Map<UUID, Member> members = new LinkedHashMap<>();
+    private final String            serviceType;
+
+    public MultiplexingServiceListener(String serviceType) {
+        this(serviceType, null);
+    }
+
+    /**
+     * @param serviceType
+     * @param dispatcher
+     *            - the dispatcher delivering the routed events, or null to
+     *            deliver them on the routing thread
+     */
+    public MultiplexingServiceListener(String serviceType,
+                                       EventDispatcher dispatcher) {
+        this.serviceType = serviceType;
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Add the listener for services of this type matching the properties. The
+     * events of the services of this type that are already known are replayed
+     * to the listener before the listener is routed any further events, so a
+     * replayed registration can never follow the live unregistration of the
+     * service. The replay is made without holding the lock of the
+     * multiplexer; the events routed to the listener meanwhile are held back
+     * and delivered once the replay is complete. With a dispatcher, the
+     * replayed events are queued on the dispatcher ahead of the live events,
+     * rather than delivered on the calling thread.
+     *
+     * @param listener
+     * @param properties
+     */
+    public void add(ServiceListener listener, Map<String, String> properties) {
+        Route route = new Route(
+                                listener,
+                                properties == null ? Collections.<String, String> emptyMap()
+                                                  : new HashMap<>(properties));
+        List<ServiceEvent> replay = new ArrayList<>();
+        synchronized (this) {
+            for (Member member : members.values()) {
+                if (route.matches(member.registered.getReference().getProperties())) {
+                    replay.add(member.registered);
+                }
+                if (member.modified != null
+                    && route.matches(member.modified.getReference().getProperties())) {
+                    replay.add(member.modified);
+                }
+            }
+            route.backlog = new ArrayList<>();
+            index.add(route);
+        }
+        while (true) {
+            for (ServiceEvent event : replay) {
+                deliver(route, event);
+            }
+            synchronized (this) {
+                if (route.backlog.isEmpty()) {
+                    route.backlog = null;
+                    return;
+                }
+                replay = route.backlog;
+                route.backlog = new ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * @return the query filter used to register this listener
+     */
+    public String constructFilter() {
+        return AutoConfigure.constructFilter(serviceType,
+                                             Collections.<String, String> emptyMap());
+    }
+
+    /**
+     * @return the number of services of this type currently known
+     */
+    public synchronized int getKnownCardinality() {
+        return members.size();
+    }
+
+    public String getServiceType() {
+        return serviceType;
+    }
+
+    /**
+     * @return true if no listeners are routed by the receiver
+     */
+    public synchronized boolean isEmpty() {
+        return index.size == 0;
+    }
+
+    /**
+     * Remove the listener
+     *
+     * @param listener
+     * @return true if the listener was routed by the receiver
+     */
+    public synchronized boolean remove(ServiceListener listener) {
+        return index.remove(listener);
+    }
+
+    /* (non-Javadoc)
+     * @see com.hellblazer.slp.ServiceListener#serviceChanged(com.hellblazer.slp.ServiceEvent)
+     */
+    @Override
+    public void serviceChanged(ServiceEvent event) {
+        ServiceReference reference = event.getReference();
+        UUID registration = AutoConfigure.registrationOf(reference);
+        List<Route> routes;
+        synchronized (this) {
+            switch (event.getType()) {
+                case REGISTERED:
+                    members.put(registration, new Member(event));
+                    break;
+                case MODIFIED:
+                    Member member = members.get(registration);
+                    if (member == null) {
+                        members.put(registration, new Member(event));
+                    } else {
+                        member.modified = event;
+                    }
+                    break;
+                case UNREGISTERED:
+                    members.remove(registration);
+                    break;
+            }
+            routes = index.match(reference.getProperties());
+            for (Iterator<Route> matched = routes.iterator(); matched.hasNext();) {
+                Route route = matched.next();
+                if (route.backlog != null) {
+                    route.backlog.add(event);
+                    matched.remove();
+                }
+            }
+        }
+        for (Route route : routes) {
+            deliver(route, event);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Multiplexing listener [%s]", serviceType);
+    }
+
+    private void deliver(Route route, ServiceEvent event) {
+        if (dispatcher != null) {
+            dispatcher.dispatch(route.listener, event);
+            return;
+        }
+        try {
+            route.listener.serviceChanged(event);
+        } catch (Throwable e) {
+            logger.error(String.format("Error delivering service event for [%s] to %s",
+                                       event.getReference().getUrl(),
+                                       route.properties), e);
+        }
+    }
+}
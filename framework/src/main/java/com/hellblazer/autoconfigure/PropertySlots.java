@@ -0,0 +1,136 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.compiler.Bytecode;
+import org.stringtemplate.v4.compiler.BytecodeDisassembler;
+import org.stringtemplate.v4.compiler.CompiledST;
+
+/**
+ * The process wide table of the slots of the service properties referenced by
+ * templates. The property names a template references are assigned their
+ * slots when its group is compiled, so that a service resolves each property
+ * once and the model adaptor answers it by indexing the slot. The table is
+ * bounded; properties referenced beyond its capacity, e.g. by name
+ * expressions evaluated while rendering, have no slot and are looked up in
+ * the properties of the service.
+ *
+ * @author hhildebrand
+ *
+ */
+final class PropertySlots {
+    static final int                                    CAPACITY = 1024;
+    static final int                                    HOST     = 0;
+    static final int                                    NONE     = -1;
+    static final int                                    PORT     = 1;
+
+    private static final List<String>                   NAMES    = new CopyOnWriteArrayList<>();
+    private static final ConcurrentMap<String, Integer> SLOTS    = new ConcurrentHashMap<>();
+
+    static {
+        slotOf("host");
+        slotOf("port");
+    }
+
+    /**
+     * Assign the slots of the properties referenced by the templates of the
+     * group and the groups it imports
+     *
+     * @param group
+     *            - the loaded template group
+     */
+    static void assign(STGroup group) {
+        for (String name : group.getTemplateNames()) {
+            CompiledST template = group.rawGetTemplate(name);
+            if (template != null) {
+                assign(template);
+            }
+        }
+        for (STGroup imported : group.getImportedGroups()) {
+            assign(imported);
+        }
+    }
+
+    /**
+     * @param slot
+     * @return the name of the property assigned the slot
+     */
+    static String nameOf(int slot) {
+        return NAMES.get(slot);
+    }
+
+    /**
+     * @return the number of slots assigned
+     */
+    static int size() {
+        return NAMES.size();
+    }
+
+    /**
+     * Answer the slot of the property, assigning it if there is capacity
+     *
+     * @param name
+     * @return the slot of the property, or NONE if the table is full
+     */
+    static int slotOf(String name) {
+        Integer slot = SLOTS.get(name);
+        if (slot != null) {
+            return slot;
+        }
+        synchronized (NAMES) {
+            slot = SLOTS.get(name);
+            if (slot != null) {
+                return slot;
+            }
+            if (NAMES.size() >= CAPACITY) {
+                return NONE;
+            }
+            NAMES.add(name);
+            SLOTS.put(name, NAMES.size() - 1);
+            return NAMES.size() - 1;
+        }
+    }
+
+    /**
+     * Assign the slots of the property names loaded by the instructions of
+     * the template and its subtemplates
+     */
+    private static void assign(CompiledST template) {
+        int ip = 0;
+        while (ip < template.codeSize) {
+            int opcode = template.instrs[ip];
+            if (opcode == Bytecode.INSTR_LOAD_PROP) {
+                slotOf(template.strings[BytecodeDisassembler.getShort(template.instrs,
+                                                                      ip + 1)]);
+            }
+            ip += 1 + Bytecode.instructions[opcode].nopnds
+                  * Bytecode.OPND_SIZE_IN_BYTES;
+        }
+        if (template.implicitlyDefinedTemplates != null) {
+            for (CompiledST subtemplate : template.implicitlyDefinedTemplates) {
+                assign(subtemplate);
+            }
+        }
+    }
+
+    private PropertySlots() {
+    }
+}
@@ -14,25 +14,39 @@
  */
 package com.hellblazer.autoconfigure;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
 
 import com.hellblazer.slp.ServiceScope;
 import com.hellblazer.slp.ServiceURL;
 
 /**
- * The model for discovered services
+ * The model for discovered services. Services are immutable; their properties
+ * are held in the compact, shared representation of ServiceProperties, and
+ * services with additional properties are derived from them.
  * 
  * @author hhildebrand
  * 
  */
 public class Service implements Comparable<Service> {
-	private final Map<String, String> properties = new HashMap<>();
+	private static final Object MISSING = new Object();
+
+	private final String host;
+	private final Integer port;
+	private final ServiceProperties properties;
 	private final ServiceURL serviceUrl;
+	private volatile Object[] values;
 
 	public Service(ServiceURL serviceUrl, Map<String, String> serviceProperties) {
 		this.serviceUrl = serviceUrl;
-		properties.putAll(serviceProperties);
+		properties = ServiceProperties.of(serviceProperties);
+		// resolved once, as templates read them for every rendering
+		host = serviceUrl.getHost();
+		port = serviceUrl.getPort();
+		Object[] resolved = new Object[2];
+		resolved[PropertySlots.HOST] = host;
+		resolved[PropertySlots.PORT] = port;
+		values = resolved;
 	}
 
 	/**
@@ -41,7 +55,7 @@ public class Service implements Comparable<Service> {
 	 * @return host of this service's URL
 	 */
 	public String getHost() {
-		return serviceUrl.getHost();
+		return host;
 	}
 
 	/**
@@ -50,9 +64,12 @@ public class Service implements Comparable<Service> {
 	 * @return port of this service's URL
 	 */
 	public int getPort() {
-		return serviceUrl.getPort();
+		return port;
 	}
 
+	/**
+	 * @return the immutable properties of the service
+	 */
 	public Map<String, String> getProperties() {
 		return properties;
 	}
@@ -61,6 +78,46 @@ public class Service implements Comparable<Service> {
 		return serviceUrl;
 	}
 
+	/**
+	 * Derive the service with the property added, or replaced
+	 * 
+	 * @param key
+	 * @param value
+	 * @return the derived service, or the receiver if the property already has
+	 *         the value
+	 */
+	public Service withProperty(String key, String value) {
+		ServiceProperties derived = properties.with(key, value);
+		return derived == properties ? this : new Service(serviceUrl, derived);
+	}
+
+	/**
+	 * Answer the value of the property assigned the slot, resolving it on the
+	 * first access
+	 * 
+	 * @param slot
+	 *            - the slot of the property in PropertySlots
+	 * @return the value of the property, or null if the service does not
+	 *         have the property
+	 */
+	Object valueOf(int slot) {
+		Object[] resolved = values;
+		Object value = slot < resolved.length ? resolved[slot] : null;
+		if (value == null) {
+			value = properties.get(PropertySlots.nameOf(slot));
+			if (value == null) {
+				value = MISSING;
+			}
+			// a racing resolution of another slot may be lost, and is
+			// resolved again on its next access
+			Object[] grown = Arrays.copyOf(resolved,
+					Math.max(resolved.length, PropertySlots.size()));
+			grown[slot] = value;
+			values = grown;
+		}
+		return value == MISSING ? null : value;
+	}
+
 	@Override
 	public String toString() {
 		return String.format("Service[%s] properties: %s", serviceUrl,
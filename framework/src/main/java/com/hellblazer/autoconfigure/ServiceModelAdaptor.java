@@ -20,7 +20,10 @@ import org.stringtemplate.v4.ST;
 import org.stringtemplate.v4.misc.STNoSuchPropertyException;
 
 /**
- * An adaptor for ST to pull properties from a service
+ * An adaptor for ST to pull properties from a service. The property is
+ * answered from its slot in the service, assigned when the templates
+ * referencing it were compiled, and is otherwise looked up in the properties
+ * of the service.
  * 
  * @author hhildebrand
  * 
@@ -40,13 +43,9 @@ public class ServiceModelAdaptor implements ModelAdaptor {
 			Object property, String propertyName)
 			throws STNoSuchPropertyException {
 		Service service = (Service) o;
-		if (propertyName.equals("port")) {
-			return service.getPort();
-		}
-		if (propertyName.equals("host")) {
-			return service.getHost();
-		}
-		String prop = service.getProperties().get(propertyName);
+		int slot = PropertySlots.slotOf(propertyName);
+		Object prop = slot == PropertySlots.NONE ? service.getProperties()
+				.get(propertyName) : service.valueOf(slot);
 		if (prop == null) {
 			throw new STNoSuchPropertyException(null, o, propertyName);
 		}
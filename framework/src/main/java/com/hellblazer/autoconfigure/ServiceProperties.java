@@ -0,0 +1,304 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.hellblazer.slp.ServiceScope;
+
+/**
+ * An immutable, compact representation of the properties of a service. The
+ * keys and values are held in flat, parallel arrays, with the keys sorted so
+ * that lookup is a binary search. The sorted key arrays are shared between
+ * all the instances with the same set of keys, and the keys are interned, so
+ * that the many members of a service collection, which share most of their
+ * keys, are represented once. The values are interned only while their key
+ * has few distinct values, such as a role or a rack; once a key has had more,
+ * such as the addresses of the members, its further values are not interned.
+ * The value of the registration property, unique to each service, is never
+ * interned. The intern tables are concurrent, so services may be constructed
+ * in parallel, and bounded: a full table of keys is cleared, after which the
+ * instances already constructed simply no longer share their keys with new
+ * ones.
+ * <p>
+ * Instances are never modified, and so may be read concurrently without
+ * synchronization. Use with(key, value) to derive a copy with a property
+ * added or replaced.
+ *
+ * @author hhildebrand
+ *
+ */
+public class ServiceProperties extends AbstractMap<String, String> {
+    /**
+     * The shared, sorted array of keys of a set of properties
+     */
+    private static class Keys {
+        private final int      hash;
+        private final String[] keys;
+
+        private Keys(String[] keys) {
+            this.keys = keys;
+            hash = Arrays.hashCode(keys);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Keys && Arrays.equals(keys, ((Keys) obj).keys);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A concurrent intern table, with its size tracked by a counter rather
+     * than computed on every miss
+     */
+    private static class Table<T> {
+        private final int                 capacity;
+        private final boolean             clearWhenFull;
+        private final ConcurrentMap<T, T> entries = new ConcurrentHashMap<>();
+        private final AtomicInteger       size    = new AtomicInteger();
+
+        /**
+         * @param capacity
+         *            - the maximum number of interned instances
+         * @param clearWhenFull
+         *            - if true, a full table is cleared, otherwise it interns
+         *            no further instances
+         */
+        private Table(int capacity, boolean clearWhenFull) {
+            this.capacity = capacity;
+            this.clearWhenFull = clearWhenFull;
+        }
+
+        /**
+         * @param candidate
+         * @return the interned instance equal to the candidate, or the
+         *         candidate itself if it is not interned
+         */
+        private T intern(T candidate) {
+            T interned = entries.get(candidate);
+            if (interned != null) {
+                return interned;
+            }
+            if (size.get() >= capacity) {
+                if (!clearWhenFull) {
+                    return candidate;
+                }
+                entries.clear();
+                size.set(0);
+            }
+            interned = entries.putIfAbsent(candidate, candidate);
+            if (interned != null) {
+                return interned;
+            }
+            size.incrementAndGet();
+            return candidate;
+        }
+    }
+
+    public static final ServiceProperties                     EMPTY           = new ServiceProperties(
+                                                                                                new Keys(
+                                                                                                         new String[0]),
+                                                                                                new String[0]);
+    private static final int                                  INTERNED        = 64 * 1024;
+    private static final Table<Keys>                          KEY_SETS        = new Table<>(
+                                                                                            INTERNED,
+                                                                                            true);
+    private static final Table<String>                        KEYS            = new Table<>(
+                                                                                            INTERNED,
+                                                                                            true);
+    private static final int                                  LOW_CARDINALITY = 64;
+    private static final AtomicInteger                        VALUE_TABLES    = new AtomicInteger();
+    private static final ConcurrentMap<String, Table<String>> VALUES          = new ConcurrentHashMap<>();
+
+    /**
+     * Answer the compact representation of the properties
+     *
+     * @param properties
+     *            - the properties, may be null
+     * @return the immutable properties
+     */
+    public static ServiceProperties of(Map<String, String> properties) {
+        if (properties instanceof ServiceProperties) {
+            return (ServiceProperties) properties;
+        }
+        if (properties == null || properties.isEmpty()) {
+            return EMPTY;
+        }
+        String[] keys = properties.keySet().toArray(new String[properties.size()]);
+        Arrays.sort(keys);
+        String[] values = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = intern(keys[i], properties.get(keys[i]));
+        }
+        return new ServiceProperties(keysOf(keys), values);
+    }
+
+    /**
+     * Intern the value of the key, if the key has few distinct values
+     *
+     * @param key
+     * @param value
+     * @return the interned value, or the value itself if it is not interned
+     */
+    private static String intern(String key, String value) {
+        if (value == null || ServiceScope.SERVICE_REGISTRATION.equals(key)) {
+            return value;
+        }
+        Table<String> values = VALUES.get(key);
+        if (values == null) {
+            if (VALUE_TABLES.get() >= INTERNED / LOW_CARDINALITY) {
+                // the values of the keys seen since are not interned
+                return value;
+            }
+            Table<String> table = new Table<>(LOW_CARDINALITY, false);
+            values = VALUES.putIfAbsent(key, table);
+            if (values == null) {
+                VALUE_TABLES.incrementAndGet();
+                values = table;
+            }
+        }
+        return values.intern(value);
+    }
+
+    private static Keys keysOf(String[] keys) {
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = KEYS.intern(keys[i]);
+        }
+        return KEY_SETS.intern(new Keys(keys));
+    }
+
+    private final Keys     keys;
+    private final String[] values;
+
+    private ServiceProperties(Keys keys, String[] values) {
+        this.keys = keys;
+        this.values = values;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new Iterator<Map.Entry<String, String>>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < values.length;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (next >= values.length) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, String> entry = new SimpleImmutableEntry<>(
+                                                                                     keys.keys[next],
+                                                                                     values[next]);
+                        next++;
+                        return entry;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return values.length;
+            }
+        };
+    }
+
+    @Override
+    public String get(Object key) {
+        int index = indexOf(key);
+        return index < 0 ? null : values[index];
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * Derive the properties with the property added, or replaced
+     *
+     * @param key
+     * @param value
+     * @return the derived properties, or the receiver if the property already
+     *         has the value
+     * @throws IllegalArgumentException
+     *             - if the key is null
+     */
+    public ServiceProperties with(String key, String value) {
+        if (key == null) {
+            throw new IllegalArgumentException("Property key must not be null");
+        }
+        int index = indexOf(key);
+        if (index >= 0) {
+            if (value == null ? values[index] == null
+                             : value.equals(values[index])) {
+                return this;
+            }
+            String[] derived = values.clone();
+            derived[index] = intern(key, value);
+            return new ServiceProperties(keys, derived);
+        }
+        int insertion = -(index + 1);
+        int length = values.length + 1;
+        String[] derivedKeys = new String[length];
+        String[] derivedValues = new String[length];
+        System.arraycopy(keys.keys, 0, derivedKeys, 0, insertion);
+        System.arraycopy(values, 0, derivedValues, 0, insertion);
+        derivedKeys[insertion] = key;
+        derivedValues[insertion] = intern(key, value);
+        System.arraycopy(keys.keys, insertion, derivedKeys, insertion + 1,
+                         values.length - insertion);
+        System.arraycopy(values, insertion, derivedValues, insertion + 1,
+                         values.length - insertion);
+        return new ServiceProperties(keysOf(derivedKeys), derivedValues);
+    }
+
+    private int indexOf(Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        return Arrays.binarySearch(keys.keys, key);
+    }
+}
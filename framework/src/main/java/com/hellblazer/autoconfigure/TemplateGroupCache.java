@@ -0,0 +1,376 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupDir;
+import org.stringtemplate.v4.STGroupFile;
+
+/**
+ * A process wide cache of compiled template groups. Template groups are keyed
+ * by the canonical path of the group file, or the URL of the group resource
+ * if it is not a file, and are compiled again only when the modification time
+ * or length of the group file, or of any of the groups it imports, has
+ * changed. The cached groups are fully loaded, with the model adaptors of the
+ * auto configuration registered, so that instances of their templates may be
+ * safely retrieved by concurrent renders.
+ * <p>
+ * The sources of a group are examined on every retrieval from the cache. A
+ * render pass retrieves its groups from a {@link Pass}, which examines the
+ * sources of each group once for the duration of the pass.
+ *
+ * @author hhildebrand
+ *
+ */
+public class TemplateGroupCache {
+    /**
+     * The template groups resolved for a render pass. The sources of a group,
+     * and of the groups it imports, are examined on its first retrieval in
+     * the pass, and later retrievals answer the same compilation without
+     * consulting the file system. Passes may be shared by concurrent renders.
+     */
+    public class Pass {
+        private final ConcurrentMap<String, CompiledGroup> resolved = new ConcurrentHashMap<>();
+
+        private Pass() {
+        }
+
+        /**
+         * @param templateGroup
+         *            - the name of the template group file
+         * @return the compiled template group
+         * @throws IllegalArgumentException
+         *             - if the template group file does not exist
+         */
+        public STGroupFile getGroup(String templateGroup) {
+            return resolve(templateGroup).group;
+        }
+
+        /**
+         * @param templateGroup
+         *            - the name of the template group file
+         * @return the fingerprint of the template group
+         * @throws IllegalArgumentException
+         *             - if the template group file does not exist
+         */
+        public String getFingerprint(String templateGroup) {
+            return resolve(templateGroup).fingerprint;
+        }
+
+        private CompiledGroup resolve(String templateGroup) {
+            CompiledGroup compiled = resolved.get(templateGroup);
+            if (compiled == null) {
+                compiled = compiled(templateGroup);
+                CompiledGroup existing = resolved.putIfAbsent(templateGroup,
+                                                              compiled);
+                if (existing != null) {
+                    compiled = existing;
+                }
+            }
+            return compiled;
+        }
+    }
+
+    private static class CompiledGroup {
+        private final String       fingerprint;
+        private final STGroupFile  group;
+        private final List<Source> sources;
+
+        private CompiledGroup(STGroupFile group, List<Source> sources) {
+            this.group = group;
+            this.sources = sources;
+            StringBuilder builder = new StringBuilder();
+            for (Source source : sources) {
+                if (builder.length() != 0) {
+                    builder.append(',');
+                }
+                builder.append(String.format("%s@%s:%s", source.key,
+                                             source.lastModified,
+                                             source.length));
+            }
+            fingerprint = builder.toString();
+        }
+    }
+
+    private static class Source {
+        private final String key;
+        private final long   lastModified;
+        private final long   length;
+        private final URL    url;
+
+        private Source(URL url, String key, long lastModified, long length) {
+            this.url = url;
+            this.key = key;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        private boolean isCurrent(Source current) {
+            return current.lastModified == lastModified
+                   && current.length == length;
+        }
+    }
+
+    private static final TemplateGroupCache DEFAULT = new TemplateGroupCache();
+    private static final Logger             logger  = LoggerFactory.getLogger(TemplateGroupCache.class);
+
+    /**
+     * @return the process wide cache of template groups
+     */
+    public static TemplateGroupCache getDefault() {
+        return DEFAULT;
+    }
+
+    private final ConcurrentMap<String, CompiledGroup> groups = new ConcurrentHashMap<>();
+
+    /**
+     * Clear the cached template groups
+     */
+    public void clear() {
+        groups.clear();
+    }
+
+    /**
+     * Answer the compiled template group. The group file is resolved as a file,
+     * and failing that, as a resource of the context class loader.
+     *
+     * @param templateGroup
+     *            - the name of the template group file
+     * @return the compiled template group
+     * @throws IllegalArgumentException
+     *             - if the template group file does not exist
+     */
+    public STGroupFile getGroup(String templateGroup) {
+        return compiled(templateGroup).group;
+    }
+
+    /**
+     * Answer the fingerprint of the template group, which changes whenever
+     * the modification time or length of the template group file, or of any
+     * of the groups it imports, changes
+     *
+     * @param templateGroup
+     *            - the name of the template group file
+     * @return the fingerprint of the template group
+     * @throws IllegalArgumentException
+     *             - if the template group file does not exist
+     */
+    public String getFingerprint(String templateGroup) {
+        return compiled(templateGroup).fingerprint;
+    }
+
+    /**
+     * @return a new render pass, resolving the template groups from this
+     *         cache
+     */
+    public Pass pass() {
+        return new Pass();
+    }
+
+    /**
+     * @return the number of template groups cached
+     */
+    public int size() {
+        return groups.size();
+    }
+
+    /**
+     * Answer the compiled template group, compiling the group if it has not
+     * been cached, or if any of its sources have been modified since it was
+     * compiled
+     */
+    private CompiledGroup compiled(String templateGroup) {
+        Source source = sourceOf(locate(templateGroup));
+        CompiledGroup compiled = groups.get(source.key);
+        if (compiled != null && isCurrent(compiled, source)) {
+            return compiled;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Compiling template group [%s]",
+                                       source.key));
+        }
+        STGroupFile group = new STGroupFile(source.url, "UTF-8", '<', '>');
+        group.registerModelAdaptor(Cluster.class, new ClusterModelAdaptor());
+        group.registerModelAdaptor(Service.class, new ServiceModelAdaptor());
+        group.registerModelAdaptor(InetSocketAddress.class,
+                                   new InetSocketAddressAdaptor());
+        group.load();
+        PropertySlots.assign(group);
+        List<Source> sources = new ArrayList<>();
+        sources.add(source);
+        importsOf(group, sources, new HashSet<String>());
+        compiled = new CompiledGroup(group, sources);
+        groups.put(source.key, compiled);
+        return compiled;
+    }
+
+    private File fileOf(URL url) {
+        if (!"file".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return new File(url.getPath());
+        }
+    }
+
+    /**
+     * Collect the sources of the groups imported by the group, transitively
+     */
+    private void importsOf(STGroup group, List<Source> sources,
+                           Set<String> visited) {
+        for (STGroup imported : group.getImportedGroups()) {
+            URL url = null;
+            if (imported instanceof STGroupFile) {
+                url = ((STGroupFile) imported).url;
+            } else if (imported instanceof STGroupDir) {
+                url = ((STGroupDir) imported).root;
+            }
+            if (url != null) {
+                Source source = sourceOf(url);
+                if (!visited.add(source.key)) {
+                    continue;
+                }
+                sources.add(source);
+            }
+            importsOf(imported, sources, visited);
+        }
+    }
+
+    /**
+     * Answer true if none of the sources of the compiled group have changed.
+     * The group file itself has just been examined.
+     */
+    private boolean isCurrent(CompiledGroup compiled, Source group) {
+        if (!compiled.sources.get(0).isCurrent(group)) {
+            return false;
+        }
+        for (Source source : compiled.sources.subList(1,
+                                                      compiled.sources.size())) {
+            if (!source.isCurrent(sourceOf(source.url, source.key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Answer the last modification time of the file. The last modification
+     * time of a directory of templates is that of its most recently modified
+     * template.
+     */
+    private long lastModifiedOf(File file) {
+        long lastModified = file.lastModified();
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                lastModified = Math.max(lastModified, lastModifiedOf(child));
+            }
+        }
+        return lastModified;
+    }
+
+    /**
+     * Answer the total length of the file, or of the templates of a
+     * directory of templates
+     */
+    private long lengthOf(File file) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            return file.length();
+        }
+        long length = 0;
+        for (File child : children) {
+            length += lengthOf(child);
+        }
+        return length;
+    }
+
+    private URL locate(String templateGroup) {
+        File file = new File(templateGroup);
+        if (file.exists()) {
+            try {
+                return file.toURI().toURL();
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException(
+                                                   String.format("Invalid template group file [%s]",
+                                                                 templateGroup),
+                                                   e);
+            }
+        }
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        URL url = cl == null ? null : cl.getResource(templateGroup);
+        if (url == null) {
+            url = TemplateGroupCache.class.getClassLoader().getResource(templateGroup);
+        }
+        if (url == null) {
+            throw new IllegalArgumentException(
+                                               String.format("No such template group file [%s]",
+                                                             templateGroup));
+        }
+        return url;
+    }
+
+    private Source sourceOf(URL url) {
+        File file = fileOf(url);
+        if (file == null) {
+            return sourceOf(url, url.toExternalForm());
+        }
+        String key;
+        try {
+            key = file.getCanonicalPath();
+        } catch (IOException e) {
+            key = file.getAbsolutePath();
+        }
+        return sourceOf(url, key);
+    }
+
+    /**
+     * Answer the current modification time and length of the file or
+     * resource
+     */
+    private Source sourceOf(URL url, String key) {
+        File file = fileOf(url);
+        if (file != null) {
+            return new Source(url, key, lastModifiedOf(file), lengthOf(file));
+        }
+        try {
+            URLConnection connection = url.openConnection();
+            return new Source(url, key, connection.getLastModified(),
+                              connection.getContentLengthLong());
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                                            String.format("Unable to access template group [%s]",
+                                                          url), e);
+        }
+    }
+}
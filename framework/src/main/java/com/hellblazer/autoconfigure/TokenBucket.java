@@ -0,0 +1,71 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket limiting the rate of an operation. The bucket holds up to
+ * the burst of tokens, and is refilled at the rate. Each operation reserves a
+ * token, waiting until the token is available should the bucket be empty.
+ * Reservations may overdraw the bucket, so that concurrent callers are
+ * spaced out by the rate in the order they reserved.
+ *
+ * @author hhildebrand
+ *
+ */
+public class TokenBucket {
+    private final int    burst;
+    private final double nanosPerToken;
+    private long         refilled;
+    private double       tokens;
+
+    /**
+     * @param rate
+     *            - the number of operations permitted per second
+     * @param burst
+     *            - the number of operations permitted without waiting
+     */
+    public TokenBucket(double rate, int burst) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException(
+                                               String.format("Rate must be positive: %s",
+                                                             rate));
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException(
+                                               String.format("Burst must be at least 1: %s",
+                                                             burst));
+        }
+        this.burst = burst;
+        nanosPerToken = TimeUnit.SECONDS.toNanos(1) / rate;
+        tokens = burst;
+        refilled = System.nanoTime();
+    }
+
+    /**
+     * Reserve a token
+     *
+     * @return the number of nanoseconds to wait until the token reserved is
+     *         available, 0 if available now
+     */
+    public synchronized long reserve() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilled) / nanosPerToken);
+        refilled = now;
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * nanosPerToken);
+    }
+}
@@ -31,14 +31,24 @@ public class Configuration {
     public static String           RESTART_STATE_FILE = ".autoconfigure.restart.state";
 
     public List<String>            additionalPorts    = new ArrayList<>();
+    public long                    coalescingMaxDelay = 0;
+    public long                    coalescingWindow   = 0;
+    public boolean                 continuous         = false;
     public GossipConfiguration     gossip             = new GossipConfiguration();
     public boolean                 ipV6               = false;
     public JmxConfiguration        jmx                = new JmxConfiguration();
     public String                  networkInterface;
+    public long                    probeWindow        = 0;
+    public int                     registrationBurst  = 1;
+    public double                  registrationRate   = 0;
+    public int                     retries            = 0;
+    public long                    retryBackoff       = 1000;
+    public long                    retryMaxBackoff    = 30000;
     public List<ServiceCollection> serviceCollections = new ArrayList<>();
     public Map<String, String>     serviceProperties  = new HashMap<>();
     public List<SingletonService>  services           = new ArrayList<>();
     public String                  serviceUrl;
+    public long                    startJitter        = 0;
     public List<Template>          templates          = new ArrayList<>();
     public String                  totalOrderingFrom;
     public String                  totalOrderingVariable;
@@ -17,11 +17,29 @@ package com.hellblazer.autoconfigure.configuration;
 
 import java.util.Map;
 
+import com.hellblazer.autoconfigure.ServiceProperties;
+
 /**
+ * The state of the registered service, saved so that the service may be
+ * restarted without reconfiguration. The service properties are held in the
+ * immutable, compact representation of ServiceProperties, and may only be
+ * replaced through setServiceProperties.
+ * 
  * @author hhildebrand
  * 
  */
 public class RestartState {
-    public String              serviceURL;
-    public Map<String, String> serviceProperties;
+    public String             serviceURL;
+    private ServiceProperties serviceProperties = ServiceProperties.EMPTY;
+
+    /**
+     * @return the immutable properties of the registered service
+     */
+    public Map<String, String> getServiceProperties() {
+        return serviceProperties;
+    }
+
+    public void setServiceProperties(Map<String, String> serviceProperties) {
+        this.serviceProperties = ServiceProperties.of(serviceProperties);
+    }
 }
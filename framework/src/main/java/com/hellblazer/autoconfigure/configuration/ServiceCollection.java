@@ -16,31 +16,78 @@ package com.hellblazer.autoconfigure.configuration;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.hellblazer.autoconfigure.AutoConfigure;
 import com.hellblazer.autoconfigure.Cluster;
 import com.hellblazer.autoconfigure.Service;
 import com.hellblazer.slp.ServiceReference;
-import com.hellblazer.slp.ServiceScope;
 
 /**
  * The definition of a collection of services that need to be discovered.
+ * <p>
+ * The discovered services are totally ordered by an index, maintained
+ * incrementally as services are discovered and removed. A service keeps its
+ * index for as long as it is a member of the collection, and a service that
+ * advertises its index using the idProperty is given that index if it is not
+ * already taken, so the indices of members survive membership changes and
+ * restarts. Services without an index are given the lowest free indices in
+ * the order of their registrations, so that peers discovering the same
+ * services assign the same indices.
+ * <p>
+ * The discovered services, their indices and their ordering are held in an
+ * immutable snapshot. A change derives a new snapshot from the current one
+ * and publishes it with a compare and set, retrying if a concurrent change
+ * was published first, so neither changes nor lookups block. A change costs
+ * a copy of the snapshot, linear in the size of the collection, which is
+ * small and changes far less often than it is read. The immutable list of
+ * the ordered services is only assembled when the cluster is rendered.
  * 
  * @author hhildebrand
  * 
  */
 public class ServiceCollection {
+    /**
+     * A snapshot of the discovered services and their total ordering. A
+     * snapshot is only modified while it is being derived, before it is
+     * published.
+     */
+    private static class Members {
+	private final Map<UUID, Service> discovered;
+	private final Map<UUID, Integer> indices;
+	private final TreeMap<Integer, Service> ordered;
+	private final Map<UUID, Service> unordered;
+
+	private Members() {
+	    discovered = new HashMap<>();
+	    indices = new HashMap<>();
+	    ordered = new TreeMap<>();
+	    unordered = new HashMap<>();
+	}
+
+	private Members(Members from) {
+	    discovered = new HashMap<>(from.discovered);
+	    indices = new HashMap<>(from.indices);
+	    ordered = new TreeMap<>(from.ordered);
+	    unordered = new HashMap<>(from.unordered);
+	}
+    }
+
     public int cardinality = 0;
+    public long gracePeriod = 0;
     public String idProperty = "totalOrderingIndex";
     public Map<String, String> properties = new HashMap<>();
+    public int quorum = 0;
     public String service;
     public String variable;
-    private final List<Service> discovered = new CopyOnWriteArrayList<>();
+    private final AtomicReference<Members> members = new AtomicReference<>(
+	    new Members());
 
     /**
      * @return the query filter for the service collection
@@ -53,19 +100,61 @@ public class ServiceCollection {
      * @return the Cluster of service models discovered for this collection
      */
     public Cluster<Service> getCluster() {
-	return new Cluster<>(canonicalizeServices());
+	return getCluster(null);
     }
 
-    public synchronized void discover(ServiceReference reference) {
-	discovered.add(new Service(reference.getUrl(), reference
-		.getProperties()));
+    /**
+     * @param self
+     *            - the service registration of the configured service, which
+     *            is excluded from the others view of the cluster. May be null
+     * @return the Cluster of service models discovered for this collection
+     */
+    public Cluster<Service> getCluster(UUID self) {
+	return new Cluster<>(canonicalizeServices(), idProperty,
+			     self == null ? null : self.toString());
+    }
+
+    /**
+     * Discover the referenced service. Redelivery of the registration of a
+     * service that has already been discovered is ignored.
+     * 
+     * @param reference
+     * @return true if the service has not previously been discovered
+     */
+    public boolean discover(ServiceReference reference) {
+	UUID registration = AutoConfigure.registrationOf(reference);
+	Service discoveredService = serviceOf(reference);
+	Integer advertised = advertisedIndexOf(reference);
+	for (;;) {
+	    Members current = members.get();
+	    if (current.discovered.containsKey(registration)) {
+		return false;
+	    }
+	    Members next = new Members(current);
+	    next.discovered.put(registration, discoveredService);
+	    claim(next, registration, discoveredService, advertised);
+	    if (members.compareAndSet(current, next)) {
+		return true;
+	    }
+	}
     }
 
     /**
      * @return the number of services discovered for this collection
      */
     public int getDiscoveredCardinality() {
-	return discovered.size();
+	return members.get().discovered.size();
+    }
+
+    /**
+     * @return the minimum number of services that must be discovered for this
+     *         collection, the cardinality if no quorum has been defined
+     */
+    public int getQuorum() {
+	if (quorum <= 0) {
+	    return cardinality;
+	}
+	return Math.min(quorum, cardinality);
     }
 
     /**
@@ -77,21 +166,48 @@ public class ServiceCollection {
      *         found
      */
     public String totalOrderingIndexOf(UUID uuid) {
-	String registration = uuid.toString();
-	for (Service service : discovered) {
-	    if (registration.equals(service.getProperties().get(
-		    ServiceScope.SERVICE_REGISTRATION))) {
-		return service.getProperties().get(idProperty);
-	    }
-	}
-	return null;
+	Integer index = members.get().indices.get(uuid);
+	return index == null ? null : String.valueOf(index);
+    }
+
+    /**
+     * @return true if the quorum of services has been discovered
+     */
+    public boolean isQuorate() {
+	return getDiscoveredCardinality() >= getQuorum();
     }
 
     /**
      * @return true if all the services have been discovered
      */
     public boolean isSatisfied() {
-	return discovered.size() == cardinality;
+	return getDiscoveredCardinality() >= cardinality;
+    }
+
+    /**
+     * Remove the referenced service from the discovered services
+     * 
+     * @param reference
+     * @return true if the service had been discovered
+     */
+    public boolean remove(ServiceReference reference) {
+	UUID registration = AutoConfigure.registrationOf(reference);
+	for (;;) {
+	    Members current = members.get();
+	    if (!current.discovered.containsKey(registration)) {
+		return false;
+	    }
+	    Members next = new Members(current);
+	    next.discovered.remove(registration);
+	    next.unordered.remove(registration);
+	    Integer index = next.indices.remove(registration);
+	    if (index != null) {
+		next.ordered.remove(index);
+	    }
+	    if (members.compareAndSet(current, next)) {
+		return true;
+	    }
+	}
     }
 
     @Override
@@ -100,20 +216,118 @@ public class ServiceCollection {
 		cardinality, service, properties);
     }
 
+    /**
+     * Update the discovered service with the modified reference. The service
+     * keeps its index, unless it advertises a different index that is not
+     * taken.
+     * 
+     * @param reference
+     * @return true if the service had been discovered
+     */
+    public boolean update(ServiceReference reference) {
+	UUID registration = AutoConfigure.registrationOf(reference);
+	Service updated = serviceOf(reference);
+	Integer advertised = advertisedIndexOf(reference);
+	for (;;) {
+	    Members current = members.get();
+	    if (!current.discovered.containsKey(registration)) {
+		return false;
+	    }
+	    Members next = new Members(current);
+	    next.discovered.put(registration, updated);
+	    Integer index = next.indices.get(registration);
+	    if (index == null) {
+		next.unordered.remove(registration);
+		claim(next, registration, updated, advertised);
+	    } else if (advertised != null && !advertised.equals(index)
+		    && !next.ordered.containsKey(advertised)) {
+		next.ordered.remove(index);
+		order(next, registration, updated, advertised);
+	    } else {
+		order(next, registration, updated, index);
+	    }
+	    if (members.compareAndSet(current, next)) {
+		return true;
+	    }
+	}
+    }
+
+    private Integer advertisedIndexOf(ServiceReference reference) {
+	Map<String, String> serviceProperties = reference.getProperties();
+	String advertised = serviceProperties == null ? null
+		: serviceProperties.get(idProperty);
+	if (advertised == null) {
+	    return null;
+	}
+	try {
+	    int index = Integer.parseInt(advertised);
+	    return index > 0 ? index : null;
+	} catch (NumberFormatException e) {
+	    return null;
+	}
+    }
+
+    /**
+     * Give the service the advertised index if it is not taken, otherwise
+     * leave the service to be ordered during canonicalization
+     */
+    private void claim(Members next, UUID registration, Service service,
+	    Integer advertised) {
+	if (advertised != null && !next.ordered.containsKey(advertised)) {
+	    order(next, registration, service, advertised);
+	} else {
+	    next.unordered.put(registration, service);
+	}
+    }
+
+    private void order(Members next, UUID registration, Service service,
+	    int index) {
+	Service indexed = service.withProperty(idProperty,
+		String.valueOf(index));
+	next.indices.put(registration, index);
+	next.ordered.put(index, indexed);
+    }
+
+    private Service serviceOf(ServiceReference reference) {
+	return new Service(reference.getUrl(), reference.getProperties());
+    }
+
     /**
      * Canonicalize the services, providing a total ordering of the services.
      * Add the unique index of each service to its properties, using the
-     * supplied idProperty as the property key
+     * supplied idProperty as the property key. Only the services that have
+     * not yet been given an index are sorted.
      */
     protected List<Service> canonicalizeServices() {
-	List<Service> canonicalized = new ArrayList<>(discovered);
-	Collections.sort(canonicalized);
-	for (int i = 1; i <= canonicalized.size(); i++) {
-	    canonicalized.get(i - 1).getProperties()
-		    .put(idProperty, String.valueOf(i));
+	for (;;) {
+	    Members current = members.get();
+	    Members next = current;
+	    if (!current.unordered.isEmpty()) {
+		next = new Members(current);
+		List<Map.Entry<UUID, Service>> pending = new ArrayList<>(
+			next.unordered.entrySet());
+		Collections.sort(pending,
+			new Comparator<Map.Entry<UUID, Service>>() {
+			    @Override
+			    public int compare(Map.Entry<UUID, Service> a,
+				    Map.Entry<UUID, Service> b) {
+				return a.getValue().compareTo(b.getValue());
+			    }
+			});
+		int index = 0;
+		for (Map.Entry<UUID, Service> entry : pending) {
+		    do {
+			index++;
+		    } while (next.ordered.containsKey(index));
+		    order(next, entry.getKey(), entry.getValue(), index);
+		}
+		next.unordered.clear();
+		if (!members.compareAndSet(current, next)) {
+		    continue;
+		}
+	    }
+	    return Collections.unmodifiableList(new ArrayList<>(
+		    next.ordered.values()));
 	}
-	discovered.clear();
-	discovered.addAll(canonicalized);
-	return canonicalized;
     }
 }
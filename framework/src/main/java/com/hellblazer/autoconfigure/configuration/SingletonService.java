@@ -63,8 +63,26 @@ public class SingletonService {
 		return discovered != null;
 	}
 
+	/**
+	 * @param reference
+	 * @return true if the referenced service is the discovered service
+	 */
+	public boolean isDiscovered(ServiceReference reference) {
+		ServiceReference current = discovered;
+		return current != null
+				&& AutoConfigure.registrationOf(current).equals(
+						AutoConfigure.registrationOf(reference));
+	}
+
 	@Override
 	public String toString() {
 		return String.format("Service [%s] properties %s", service, properties);
 	}
+
+	/**
+	 * Forget the discovered service
+	 */
+	public void undiscover() {
+		discovered = null;
+	}
 }
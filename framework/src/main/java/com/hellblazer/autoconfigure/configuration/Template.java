@@ -15,8 +15,19 @@
 package com.hellblazer.autoconfigure.configuration;
 
 import java.io.File;
+import java.util.List;
 
 /**
+ * The definition of a configuration generated from a template.
+ * <p>
+ * A template is rendered as soon as the services and service collections it
+ * uses have been discovered, rather than when all the services required by
+ * the configuration have been discovered. The services and service
+ * collections used are identified by their variables. If none are declared,
+ * the template uses those named by the formal arguments of the template.
+ * Templates using the total ordering index of the configured service are
+ * rendered only once all the services have been discovered.
+ * 
  * @author hhildebrand
  * 
  */
@@ -24,9 +35,22 @@ public class Template {
 	public static final String CONFIGURATION = "configuration";
 	public static final String THIS_SERVICE = "configuredService";
 
+	/**
+	 * The charset used to encode the generated configuration
+	 */
+	public String charset = "UTF-8";
+	/**
+	 * The generated configuration file. The file is replaced by a hidden file
+	 * staged alongside it, so the directory must be writable
+	 */
 	public File generated;
 	public String name;
+	/**
+	 * If true, the generated configuration is forced to storage once written
+	 */
+	public boolean sync = false;
 	public String template = CONFIGURATION;
 	public String templateGroup;
 	public String thisServiceName = THIS_SERVICE;
+	public List<String> uses;
 }
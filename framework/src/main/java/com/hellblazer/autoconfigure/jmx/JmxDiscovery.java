@@ -97,6 +97,12 @@ public class JmxDiscovery {
 	}
     }
 
+    /**
+     * The property of a service registration advertising the service URL of
+     * the JMX endpoint of its process
+     */
+    public static final String ENDPOINT_PROPERTY = "jmx.endpoint";
+
     private static final Logger log = LoggerFactory
 	    .getLogger(JmxDiscovery.class);
 
@@ -119,6 +125,7 @@ public class JmxDiscovery {
     private final AtomicBoolean running = new AtomicBoolean();
     private final ServiceScope scope;
     private JMXConnectorServer server;
+    private ServiceURL serviceUrl;
     private final String serviceType;
 
     public JmxDiscovery(JmxConfiguration configuration, ServiceScope scope) {
@@ -126,14 +133,17 @@ public class JmxDiscovery {
 	serviceType = configuration.serviceType;
     }
 
-    public void shutdown() throws IOException {
-	if (running.compareAndSet(true, false)) {
-	    scope.unregister(registration);
-	    server.stop();
-	}
-    }
-
-    public void start(InetAddress defaultHost) throws IOException {
+    /**
+     * Start the JMX endpoint, if it has not been started, without registering
+     * it as a service. The service URL is advertised by the caller, e.g. as
+     * the ENDPOINT_PROPERTY of its own registration.
+     * 
+     * @param defaultHost
+     * @return the service URL of the JMX endpoint
+     * @throws IOException
+     */
+    public synchronized ServiceURL open(InetAddress defaultHost)
+	    throws IOException {
 	if (running.compareAndSet(false, true)) {
 	    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
 		@Override
@@ -151,7 +161,31 @@ public class JmxDiscovery {
 	    server = contruct(jmxEndpoint,
 		    ManagementFactory.getPlatformMBeanServer());
 	    server.start();
-	    ServiceURL serviceUrl = constructServiceURL(server.getAddress());
+	    serviceUrl = constructServiceURL(server.getAddress());
+	}
+	return serviceUrl;
+    }
+
+    public synchronized void shutdown() throws IOException {
+	if (running.compareAndSet(true, false)) {
+	    if (registration != null) {
+		scope.unregister(registration);
+		registration = null;
+	    }
+	    server.stop();
+	}
+    }
+
+    /**
+     * Start the JMX endpoint, if it has not been started, and register it as
+     * a service of its own
+     * 
+     * @param defaultHost
+     * @throws IOException
+     */
+    public synchronized void start(InetAddress defaultHost) throws IOException {
+	ServiceURL serviceUrl = open(defaultHost);
+	if (registration == null) {
 	    log.info(String.format("Registering as %s", serviceUrl));
 	    registration = scope.register(serviceUrl,
 		    new HashMap<String, String>());
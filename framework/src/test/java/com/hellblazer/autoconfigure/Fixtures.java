@@ -0,0 +1,210 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.hellblazer.autoconfigure.configuration.Configuration;
+import com.hellblazer.autoconfigure.configuration.ServiceCollection;
+import com.hellblazer.autoconfigure.configuration.SingletonService;
+import com.hellblazer.autoconfigure.configuration.Template;
+import com.hellblazer.slp.ServiceReference;
+import com.hellblazer.slp.ServiceScope;
+import com.hellblazer.slp.ServiceURL;
+
+/**
+ * The service references, configurations and configured services shared by
+ * the tests
+ *
+ * @author hhildebrand
+ *
+ */
+final class Fixtures {
+
+    /**
+     * A configured service recording the configurations handed off to it
+     */
+    static class RecordingService extends AutoConfigureService {
+        final Map<String, File>                  handedOff        = new ConcurrentHashMap<>();
+        final AtomicInteger                      reconfigurations = new AtomicInteger();
+        final AtomicReference<Map<String, File>> reconfigured     = new AtomicReference<>();
+        final AtomicBoolean                      succeeded        = new AtomicBoolean();
+
+        RecordingService(AutoConfigure autoConfigure) {
+            super(autoConfigure);
+        }
+
+        @Override
+        public void fail(Map<String, File> configurations) throws Exception {
+        }
+
+        @Override
+        public void generated(String name, File configuration) {
+            handedOff.put(name, configuration);
+        }
+
+        @Override
+        public void reconfigure(Map<String, File> configurations)
+                                                                 throws Exception {
+            reconfigurations.incrementAndGet();
+            reconfigured.set(configurations);
+        }
+
+        @Override
+        public void succeed(Map<String, File> configurations) throws Exception {
+            succeeded.set(true);
+        }
+    }
+
+    /**
+     * Answer the configuration of a singleton service, a service collection
+     * of two members and the templates of the template groups, generated in
+     * the directory
+     *
+     * @param directory
+     * @param groups
+     *            - the names of the template groups in the configurations
+     *            test resources
+     * @return the configuration
+     * @throws SocketException
+     */
+    static Configuration configuration(File directory, String... groups)
+                                                                        throws SocketException {
+        SingletonService service = new SingletonService();
+        service.service = "service:testService:tcp";
+        service.variable = "service";
+
+        ServiceCollection serviceCollection = new ServiceCollection();
+        serviceCollection.service = "service:testServiceCollection:tcp";
+        serviceCollection.cardinality = 2;
+        serviceCollection.variable = "serviceCollection";
+
+        Configuration config = new Configuration();
+        config.serviceUrl = "service:test:tcp://%s:%s";
+        config.networkInterface = NetworkInterface.getByIndex(1).getName();
+        config.services.add(service);
+        config.serviceCollections.add(serviceCollection);
+        for (String group : groups) {
+            Template template = new Template();
+            template.name = group + ".properties";
+            template.templateGroup = String.format("configurations/%s.stg",
+                                                   group);
+            template.generated = new File(directory, template.name);
+            config.templates.add(template);
+        }
+        config.variables.put("a", "A");
+        config.variables.put("b", "B");
+        config.restartStateFile = new File(directory, ".restart.state").getAbsolutePath();
+        return config;
+    }
+
+    static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        try (FileInputStream is = new FileInputStream(file)) {
+            properties.load(is);
+        }
+        return properties;
+    }
+
+    /**
+     * @param properties
+     *            - alternating keys and values
+     * @return the map of the properties
+     */
+    static Map<String, String> properties(String... properties) {
+        Map<String, String> props = new HashMap<>();
+        for (int i = 0; i < properties.length; i += 2) {
+            props.put(properties[i], properties[i + 1]);
+        }
+        return props;
+    }
+
+    static ServiceReference reference(Map<String, String> properties) {
+        return reference(UUID.randomUUID(), "localhost", 0, properties);
+    }
+
+    static ServiceReference reference(String host, int port) {
+        return reference(UUID.randomUUID(), host, port,
+                         new HashMap<String, String>());
+    }
+
+    static ServiceReference reference(UUID registration) {
+        return reference(registration, "localhost", 0,
+                         new HashMap<String, String>());
+    }
+
+    static ServiceReference reference(UUID registration, int port) {
+        return reference(registration, "localhost", port,
+                         new HashMap<String, String>());
+    }
+
+    /**
+     * Answer the reference to the service registration, advertised with the
+     * properties
+     *
+     * @param registration
+     * @param host
+     * @param port
+     * @param properties
+     * @return the service reference
+     */
+    static ServiceReference reference(UUID registration, String host,
+                                      int port, Map<String, String> properties) {
+        properties.put(ServiceScope.SERVICE_REGISTRATION,
+                       registration.toString());
+        ServiceURL url = mock(ServiceURL.class);
+        when(url.getHost()).thenReturn(host);
+        when(url.getPort()).thenReturn(port);
+        ServiceReference reference = mock(ServiceReference.class);
+        when(reference.getUrl()).thenReturn(url);
+        when(reference.getRegistration()).thenReturn(registration);
+        when(reference.getProperties()).thenReturn(properties);
+        return reference;
+    }
+
+    /**
+     * Start the auto configuration of a recording service
+     *
+     * @param autoConfigure
+     * @param timeout
+     * @param unit
+     * @return the started service
+     */
+    static RecordingService start(AutoConfigure autoConfigure, long timeout,
+                                  TimeUnit unit) {
+        RecordingService service = new RecordingService(autoConfigure);
+        service.start(timeout, unit);
+        return service;
+    }
+
+    private Fixtures() {
+    }
+}
@@ -0,0 +1,142 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.stringtemplate.v4.Interpreter;
+import org.stringtemplate.v4.ModelAdaptor;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupString;
+import org.stringtemplate.v4.misc.STNoSuchPropertyException;
+
+import com.hellblazer.slp.ServiceScope;
+import com.hellblazer.slp.ServiceURL;
+
+/**
+ * A harness comparing the rendering of a large member loop by the slotted
+ * service model adaptor with the adaptor looking up every property access in
+ * the properties of the service. Not a test; run it directly:
+ *
+ * <pre>
+ * java com.hellblazer.autoconfigure.ModelAdaptorBenchmark [members] [iterations]
+ * </pre>
+ *
+ * @author hhildebrand
+ *
+ */
+public class ModelAdaptorBenchmark {
+
+    /**
+     * The adaptor resolving each access by name, as before the properties
+     * referenced by templates were assigned slots
+     */
+    private static class LookupAdaptor implements ModelAdaptor {
+        @Override
+        public Object getProperty(Interpreter interp, ST self, Object o,
+                                  Object property, String propertyName)
+                                                                       throws STNoSuchPropertyException {
+            Service service = (Service) o;
+            switch (propertyName) {
+                case "port":
+                    return service.getPort();
+                case "host":
+                    return service.getHost();
+            }
+            String prop = service.getProperties().get(propertyName);
+            if (prop == null) {
+                throw new STNoSuchPropertyException(null, o, propertyName);
+            }
+            return prop;
+        }
+    }
+
+    private static final String TEMPLATE = "configuration(cluster) ::= <<\n"
+                                           + "<cluster.members:{m | <m.host>:<m.port> <m.rack> <m.zone> <m.role> <m.totalOrderingIndex>}; separator=\"\\n\">\n"
+                                           + ">>\n";
+
+    public static void main(String[] argv) {
+        int members = argv.length > 0 ? Integer.parseInt(argv[0]) : 1000;
+        int iterations = argv.length > 1 ? Integer.parseInt(argv[1]) : 200;
+        Cluster<Service> cluster = cluster(members);
+
+        STGroup slotted = group(new ServiceModelAdaptor());
+        PropertySlots.assign(slotted);
+        STGroup lookup = group(new LookupAdaptor());
+
+        // alternate the adaptors so both see the same warm up
+        for (int round = 0; round < 3; round++) {
+            report("lookup", members, run(lookup, cluster, iterations));
+            report("slotted", members, run(slotted, cluster, iterations));
+        }
+    }
+
+    private static Cluster<Service> cluster(int members) {
+        List<Service> services = new ArrayList<>();
+        for (int i = 0; i < members; i++) {
+            ServiceURL url = mock(ServiceURL.class);
+            when(url.getHost()).thenReturn("host-" + i);
+            when(url.getPort()).thenReturn(1024 + i);
+            Map<String, String> properties = new HashMap<>();
+            properties.put(ServiceScope.SERVICE_REGISTRATION,
+                           String.format("%08d", i));
+            properties.put("rack", "rack-" + i % 16);
+            properties.put("zone", "zone-" + i % 3);
+            properties.put("role", i == 0 ? "leader" : "follower");
+            properties.put("totalOrderingIndex", String.valueOf(i));
+            services.add(new Service(url, properties));
+        }
+        return new Cluster<>(services);
+    }
+
+    private static STGroup group(ModelAdaptor adaptor) {
+        STGroup group = new STGroupString(TEMPLATE);
+        group.registerModelAdaptor(Cluster.class, new ClusterModelAdaptor());
+        group.registerModelAdaptor(Service.class, adaptor);
+        group.load();
+        return group;
+    }
+
+    private static void report(String adaptor, int members, long nanos) {
+        System.out.println(String.format("%-8s %,10d ns/render (%d members)",
+                                         adaptor, nanos, members));
+    }
+
+    /**
+     * @return the mean time of a rendering, in nanoseconds
+     */
+    private static long run(STGroup group, Cluster<Service> cluster,
+                            int iterations) {
+        int length = 0;
+        long started = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            ST st = group.getInstanceOf("configuration");
+            st.add("cluster", cluster);
+            length += st.render().length();
+        }
+        long elapsed = System.nanoTime() - started;
+        if (length == 0) {
+            throw new IllegalStateException("Nothing rendered");
+        }
+        return elapsed / iterations;
+    }
+}
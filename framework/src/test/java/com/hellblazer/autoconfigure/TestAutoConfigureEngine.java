@@ -0,0 +1,392 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hellblazer.autoconfigure.BootstrapTimeline.Entry;
+import com.hellblazer.autoconfigure.BootstrapTimeline.Phase;
+import com.hellblazer.autoconfigure.Fixtures.RecordingService;
+import com.hellblazer.autoconfigure.configuration.Configuration;
+import com.hellblazer.autoconfigure.configuration.RestartState;
+import com.hellblazer.autoconfigure.configuration.ServiceCollection;
+import com.hellblazer.autoconfigure.jmx.JmxDiscovery;
+import com.hellblazer.slp.ServiceReference;
+import com.hellblazer.slp.ServiceScope;
+import com.hellblazer.slp.ServiceURL;
+import com.hellblazer.utils.Condition;
+import com.hellblazer.utils.LabeledThreadFactory;
+import com.hellblazer.utils.TemporaryDirectory;
+import com.hellblazer.utils.Utils;
+
+/**
+ * @author hhildebrand
+ *
+ */
+public class TestAutoConfigureEngine {
+
+    private static Entry last(List<Entry> entries) {
+        return entries.get(entries.size() - 1);
+    }
+
+    @Mock
+    private ServiceScope discovery;
+    private String       interfaceName;
+
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        interfaceName = NetworkInterface.getByIndex(1).getName();
+    }
+
+    @Test
+    public void testActionsRunOnActionPool() throws Exception {
+        ExecutorService actions = Executors.newSingleThreadExecutor(new LabeledThreadFactory(
+                                                                                          "Test Action Thread"));
+        AutoConfigureEngine engine = new AutoConfigureEngine(
+                                                             discovery,
+                                                             null,
+                                                             Executors.newSingleThreadScheduledExecutor(),
+                                                             Executors.newSingleThreadExecutor(),
+                                                             actions);
+        Configuration config = new Configuration();
+        config.serviceUrl = "service:test:tcp://%s:%s";
+        config.networkInterface = interfaceName;
+        config.restartStateFile = new File("target/.actions.restart.state").getAbsolutePath();
+        ServiceCollection serviceCollection = new ServiceCollection();
+        serviceCollection.service = "service:testServiceCollection:tcp";
+        serviceCollection.cardinality = 1;
+        serviceCollection.variable = "serviceCollection";
+        config.serviceCollections.add(serviceCollection);
+        final AtomicReference<Thread> failedOn = new AtomicReference<>();
+        new AutoConfigureService(engine.host(config)) {
+            @Override
+            public void fail(Map<String, File> configurations)
+                                                              throws Exception {
+                failedOn.set(Thread.currentThread());
+            }
+
+            @Override
+            public void succeed(Map<String, File> configurations)
+                                                                 throws Exception {
+            }
+        }.start(10, TimeUnit.MILLISECONDS);
+        assertTrue("configuration did not fail",
+                   Utils.waitForCondition(1000, new Condition() {
+                       @Override
+                       public boolean isTrue() {
+                           return failedOn.get() != null;
+                       }
+                   }));
+        assertTrue(failedOn.get().getName().startsWith("Test Action Thread"));
+        engine.shutdown();
+    }
+
+    @Test
+    public void testRejectedActionsDropped() throws Exception {
+        AutoConfigureEngine engine = new AutoConfigureEngine(discovery, null);
+        final AtomicInteger ran = new AtomicInteger();
+        Runnable action = engine.acting(new Runnable() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+            }
+        });
+        engine.shutdown();
+        // the action is not run on the timer or dispatcher calling it
+        action.run();
+        assertEquals(0, ran.get());
+    }
+
+    @Test
+    public void testParallelRendering() throws Exception {
+        AutoConfigureEngine engine = new AutoConfigureEngine(
+                                                             discovery,
+                                                             null,
+                                                             Executors.newSingleThreadScheduledExecutor(),
+                                                             Executors.newSingleThreadExecutor(),
+                                                             Executors.newCachedThreadPool(),
+                                                             new ForkJoinPool(
+                                                                              3));
+        try {
+            final CountDownLatch rendering = new CountDownLatch(3);
+            List<Callable<Void>> renders = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                renders.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        rendering.countDown();
+                        assertTrue("renders did not run in parallel",
+                                   rendering.await(1, TimeUnit.SECONDS));
+                        return null;
+                    }
+                });
+            }
+            engine.render(renders);
+
+            renders.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    throw new IllegalArgumentException("failed render");
+                }
+            });
+            try {
+                engine.render(renders);
+                fail("Expected the failed render to propagate");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("failed render"));
+            }
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testRenderersOwnedByEngine() throws Exception {
+        final AtomicReference<Thread> renderedOn = new AtomicReference<>();
+        List<Callable<Void>> renders = new ArrayList<>();
+        renders.add(new Callable<Void>() {
+            @Override
+            public Void call() {
+                renderedOn.set(Thread.currentThread());
+                return null;
+            }
+        });
+        AutoConfigureEngine engine = new AutoConfigureEngine(discovery, null);
+        AutoConfigureEngine other = new AutoConfigureEngine(discovery, null);
+        try {
+            engine.shutdown();
+            // the rendering pool of the engine has been shut down with it
+            engine.render(renders);
+            assertEquals(Thread.currentThread(), renderedOn.get());
+
+            other.render(renders);
+            assertTrue(renderedOn.get() instanceof ForkJoinWorkerThread);
+        } finally {
+            other.shutdown();
+        }
+    }
+
+    @Test
+    public void testHostedRegistrationRate() throws Exception {
+        AutoConfigureEngine engine = new AutoConfigureEngine(discovery, null);
+        try {
+            Configuration limited = new Configuration();
+            limited.registrationRate = 1;
+            AutoConfigure tenant = engine.host(limited);
+            AutoConfigure other = engine.host(new Configuration());
+            assertEquals(0, tenant.reserveRegistration());
+            assertTrue(tenant.reserveRegistration() > 0);
+            assertEquals(0, other.reserveRegistration());
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testHostedVerboseTemplating() throws Exception {
+        AutoConfigureEngine engine = new AutoConfigureEngine(discovery, null);
+        try {
+            Configuration verbose = new Configuration();
+            verbose.verboseTemplating = true;
+            try {
+                engine.host(verbose);
+                fail("Expected verbose templating to be rejected");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("verbose templating"));
+            }
+            engine.setVerboseTemplating(true);
+            engine.host(verbose);
+        } finally {
+            engine.setVerboseTemplating(false);
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testJmxEndpointPublished() throws Exception {
+        UUID registration = UUID.randomUUID();
+        ServiceReference registered = Fixtures.reference(registration);
+        when(discovery.register(any(ServiceURL.class),
+                                anyMapOf(String.class, String.class))).thenReturn(registration);
+        when(discovery.getReference(registration)).thenReturn(registered);
+        AutoConfigureEngine engine = new AutoConfigureEngine(discovery, null);
+        try (TemporaryDirectory tempDirectory = new TemporaryDirectory(
+                                                                       "jmx-",
+                                                                       "dir")) {
+            Configuration config = new Configuration();
+            config.serviceUrl = "service:test:tcp://%s:%s";
+            config.networkInterface = interfaceName;
+            config.restartStateFile = new File(tempDirectory.directory,
+                                               ".restart.state").getAbsolutePath();
+            AutoConfigure tenant = engine.host(config);
+            RecordingService service = new RecordingService(tenant);
+            assertTrue(service.start(1, TimeUnit.SECONDS).get(1,
+                                                              TimeUnit.SECONDS).isEmpty());
+            assertTrue(service.succeeded.get());
+
+            // the JMX endpoint is not registered as a service of its own,
+            // but published in the single update of this service's
+            // registration
+            verify(discovery, times(1)).register(any(ServiceURL.class),
+                                                 anyMapOf(String.class,
+                                                          String.class));
+            @SuppressWarnings("unchecked")
+            ArgumentCaptor<Map<String, String>> published = ArgumentCaptor.forClass((Class<Map<String, String>>) (Class<?>) Map.class);
+            verify(discovery, times(1)).setProperties(eq(registration),
+                                                      published.capture());
+            assertEquals(engine.getJmxDiscovery().open(null).getServiceURL(),
+                         published.getValue().get(JmxDiscovery.ENDPOINT_PROPERTY));
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testRestartRegistration() throws Exception {
+        final UUID registration = UUID.randomUUID();
+        ServiceReference registered = mock(ServiceReference.class);
+        when(discovery.register(any(ServiceURL.class),
+                                anyMapOf(String.class, String.class))).thenReturn(registration);
+        when(discovery.getReference(registration)).thenReturn(registered);
+        AutoConfigureEngine engine = new AutoConfigureEngine(discovery, null);
+        try (TemporaryDirectory tempDirectory = new TemporaryDirectory(
+                                                                       "restart-",
+                                                                       "dir")) {
+            Configuration config = new Configuration();
+            config.restartStateFile = new File(tempDirectory.directory,
+                                               ".restart.state").getAbsolutePath();
+            RestartState state = new RestartState();
+            state.serviceURL = "service:test:tcp://localhost:1234";
+            state.setServiceProperties(Collections.singletonMap("a", "A"));
+            new ObjectMapper().writeValue(new File(config.restartStateFile),
+                                          state);
+            // the registration of the restarted service waits for the limit
+            engine.setRegistrationRate(10, 1);
+            engine.reserveRegistration();
+
+            final AutoConfigure tenant = engine.host(config);
+            final AtomicReference<ServiceReference> succeededWith = new AtomicReference<>();
+            RecordingService service = new RecordingService(tenant) {
+                @Override
+                public void succeed(Map<String, File> configurations)
+                                                                     throws Exception {
+                    succeededWith.set(tenant.getServiceReference());
+                    super.succeed(configurations);
+                }
+            };
+            assertTrue(service.start(1, TimeUnit.SECONDS).get(1,
+                                                              TimeUnit.SECONDS).isEmpty());
+            assertSame(registered, succeededWith.get());
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testSharedRegistrationRate() throws Exception {
+        AutoConfigureEngine engine = new AutoConfigureEngine(discovery, null);
+        try {
+            assertEquals(0, engine.reserveRegistration());
+            engine.setRegistrationRate(1, 2);
+            engine.host(new Configuration());
+            engine.host(new Configuration());
+            assertEquals(0, engine.reserveRegistration());
+            assertEquals(0, engine.reserveRegistration());
+            assertTrue(engine.reserveRegistration() > 0);
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void testSharedDiscovery() throws Exception {
+        AutoConfigureEngine engine = new AutoConfigureEngine(discovery, null);
+        final AtomicInteger succeeded = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            Configuration config = new Configuration();
+            config.serviceUrl = "service:test:tcp://%s:%s";
+            config.networkInterface = interfaceName;
+            config.restartStateFile = new File("target/.tenant-" + i
+                                               + ".restart.state").getAbsolutePath();
+            AutoConfigure tenant = engine.host(config);
+            new AutoConfigureService(tenant) {
+                @Override
+                public void fail(Map<String, File> configurations)
+                                                                  throws Exception {
+                }
+
+                @Override
+                public void succeed(Map<String, File> configurations)
+                                                                     throws Exception {
+                    succeeded.incrementAndGet();
+                }
+            }.start(100, TimeUnit.MILLISECONDS);
+        }
+        assertTrue("tenants did not complete",
+                   Utils.waitForCondition(1000, new Condition() {
+                       @Override
+                       public boolean isTrue() {
+                           return succeeded.get() == 3;
+                       }
+                   }));
+        assertEquals(3, engine.getTenants().size());
+        assertEquals(3, engine.getLatencies().get(Phase.READY).getCount());
+        assertEquals(3,
+                     engine.getLatencies().get(Phase.REGISTER_SERVICE).getCount());
+        assertEquals(Phase.READY,
+                     last(engine.getTenants().get(0).getTimeline().getEntries()).getPhase());
+        engine.getTenants().get(0).shutdown();
+        assertEquals(2, engine.getTenants().size());
+        engine.shutdown();
+        assertEquals(0, engine.getTenants().size());
+        verify(discovery, times(1)).start();
+        verify(discovery, times(1)).stop();
+    }
+}
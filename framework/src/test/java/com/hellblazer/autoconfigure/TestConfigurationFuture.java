@@ -0,0 +1,329 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import static com.hellblazer.autoconfigure.Fixtures.reference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.hellblazer.autoconfigure.configuration.Configuration;
+import com.hellblazer.autoconfigure.configuration.ServiceCollection;
+import com.hellblazer.slp.ServiceReference;
+import com.hellblazer.slp.ServiceScope;
+import com.hellblazer.slp.ServiceURL;
+
+/**
+ * @author hhildebrand
+ *
+ */
+public class TestConfigurationFuture {
+    private static class Recorder implements ConfigurationFuture.Callback {
+        private final AtomicReference<Throwable>         failure   = new AtomicReference<>();
+        private final AtomicReference<Map<String, File>> succeeded = new AtomicReference<>();
+
+        @Override
+        public void failed(Throwable cause) {
+            failure.set(cause);
+        }
+
+        @Override
+        public void succeeded(Map<String, File> configurations) {
+            succeeded.set(configurations);
+        }
+    }
+
+    @Test
+    public void testCallbacks() throws Exception {
+        final AtomicInteger cancelled = new AtomicInteger();
+        ConfigurationFuture future = new ConfigurationFuture(new Runnable() {
+            @Override
+            public void run() {
+                cancelled.incrementAndGet();
+            }
+        });
+        Recorder before = new Recorder();
+        future.addCallback(before);
+        assertFalse(future.isDone());
+        assertTrue(future.succeed(Collections.singletonMap("config",
+                                                           new File("config"))));
+        assertFalse(future.fail(new IllegalStateException()));
+        assertFalse(future.cancel(true));
+        assertEquals(0, cancelled.get());
+        assertNotNull(before.succeeded.get());
+
+        Recorder after = new Recorder();
+        future.addCallback(after);
+        assertEquals(before.succeeded.get(), after.succeeded.get());
+        assertEquals(new File("config"), future.get().get("config"));
+    }
+
+    @Test
+    public void testCancellation() throws Exception {
+        final AtomicInteger cancelled = new AtomicInteger();
+        ConfigurationFuture future = new ConfigurationFuture(new Runnable() {
+            @Override
+            public void run() {
+                cancelled.incrementAndGet();
+            }
+        });
+        Recorder recorder = new Recorder();
+        future.addCallback(recorder);
+        assertTrue(future.cancel(false));
+        assertTrue(future.isCancelled());
+        assertEquals(1, cancelled.get());
+        assertTrue(recorder.failure.get() instanceof CancellationException);
+        try {
+            future.get();
+            fail("Expected cancellation");
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFailedConfiguration() throws Exception {
+        Configuration config = new Configuration();
+        config.serviceUrl = "service:test:tcp://%s:%s";
+        config.networkInterface = NetworkInterface.getByIndex(1).getName();
+        config.restartStateFile = new File("target/.future.restart.state").getAbsolutePath();
+        ServiceCollection serviceCollection = new ServiceCollection();
+        serviceCollection.service = "service:testServiceCollection:tcp";
+        serviceCollection.cardinality = 1;
+        serviceCollection.variable = "serviceCollection";
+        config.serviceCollections.add(serviceCollection);
+        AutoConfigure autoConfigure = new AutoConfigure(
+                                                        config,
+                                                        Mockito.mock(ServiceScope.class));
+        try {
+            ConfigurationFuture future = autoConfigure.configure(Collections.<String, String> emptyMap(),
+                                                                 10,
+                                                                 TimeUnit.MILLISECONDS);
+            try {
+                future.get(1, TimeUnit.SECONDS);
+                fail("Expected the configuration to fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        } finally {
+            autoConfigure.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailFast() throws Exception {
+        Configuration config = new Configuration();
+        config.serviceUrl = "service:test:tcp://%s:%s";
+        config.networkInterface = NetworkInterface.getByIndex(1).getName();
+        config.restartStateFile = new File("target/.future.restart.state").getAbsolutePath();
+        config.probeWindow = 50;
+        ServiceCollection serviceCollection = new ServiceCollection();
+        serviceCollection.service = "service:testServiceCollection:tcp";
+        serviceCollection.cardinality = 1;
+        serviceCollection.variable = "serviceCollection";
+        config.serviceCollections.add(serviceCollection);
+        AutoConfigure autoConfigure = new AutoConfigure(
+                                                        config,
+                                                        Mockito.mock(ServiceScope.class));
+        try {
+            ConfigurationFuture future = autoConfigure.configure(Collections.<String, String> emptyMap(),
+                                                                 1,
+                                                                 TimeUnit.MINUTES);
+            try {
+                future.get(1, TimeUnit.SECONDS);
+                fail("Expected the configuration to fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+                String report = e.getCause().getMessage();
+                assertTrue(report,
+                           report.contains("service collection [serviceCollection] of type [service:testServiceCollection:tcp]"));
+                assertTrue(report,
+                           report.contains("0 services of the type known"));
+            }
+        } finally {
+            autoConfigure.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailFastWithRetries() throws Exception {
+        Configuration config = new Configuration();
+        config.serviceUrl = "service:test:tcp://%s:%s";
+        config.networkInterface = NetworkInterface.getByIndex(1).getName();
+        config.restartStateFile = new File("target/.future.restart.state").getAbsolutePath();
+        config.probeWindow = 50;
+        // a retry would delay the failure well beyond the wait for it
+        config.retries = 10;
+        config.retryBackoff = TimeUnit.MINUTES.toMillis(1);
+        config.retryMaxBackoff = TimeUnit.MINUTES.toMillis(1);
+        ServiceCollection serviceCollection = new ServiceCollection();
+        serviceCollection.service = "service:testServiceCollection:tcp";
+        serviceCollection.cardinality = 1;
+        serviceCollection.variable = "serviceCollection";
+        config.serviceCollections.add(serviceCollection);
+        AutoConfigure autoConfigure = new AutoConfigure(
+                                                        config,
+                                                        Mockito.mock(ServiceScope.class));
+        try {
+            ConfigurationFuture future = autoConfigure.configure(Collections.<String, String> emptyMap(),
+                                                                 1,
+                                                                 TimeUnit.MINUTES);
+            try {
+                future.get(1, TimeUnit.SECONDS);
+                fail("Expected the configuration to fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+                String report = e.getCause().getMessage();
+                assertTrue(report,
+                           report.contains("within the probe window of 50 ms"));
+            }
+        } finally {
+            autoConfigure.shutdown();
+        }
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        Configuration config = new Configuration();
+        config.serviceUrl = "service:test:tcp://%s:%s";
+        config.networkInterface = NetworkInterface.getByIndex(1).getName();
+        config.restartStateFile = new File("target/.retry.restart.state").getAbsolutePath();
+        config.retries = 10;
+        config.retryBackoff = 10;
+        config.retryMaxBackoff = 20;
+        ServiceCollection serviceCollection = new ServiceCollection();
+        serviceCollection.service = "service:testServiceCollection:tcp";
+        serviceCollection.cardinality = 1;
+        serviceCollection.variable = "serviceCollection";
+        config.serviceCollections.add(serviceCollection);
+        ServiceScope discovery = Mockito.mock(ServiceScope.class);
+        AutoConfigure autoConfigure = new AutoConfigure(config, discovery);
+        try {
+            ConfigurationFuture future = autoConfigure.configure(Collections.<String, String> emptyMap(),
+                                                                 20,
+                                                                 TimeUnit.MILLISECONDS);
+            InetSocketAddress bound = autoConfigure.getBound();
+            Thread.sleep(100);
+            assertFalse(future.isDone());
+
+            ServiceURL url = mock(ServiceURL.class);
+            when(url.getHost()).thenReturn("localhost");
+            when(url.getPort()).thenReturn(1);
+            ServiceReference reference = mock(ServiceReference.class);
+            when(reference.getUrl()).thenReturn(url);
+            when(reference.getRegistration()).thenReturn(UUID.randomUUID());
+            autoConfigure.discover(reference, serviceCollection);
+            assertNotNull(future.get(1, TimeUnit.SECONDS));
+            assertEquals(bound, autoConfigure.getBound());
+            ArgumentCaptor<ServiceURL> registered = ArgumentCaptor.forClass(ServiceURL.class);
+            verify(discovery, atLeastOnce()).register(registered.capture(),
+                                                      anyMapOf(String.class,
+                                                               String.class));
+            int registrations = 0;
+            for (ServiceURL serviceUrl : registered.getAllValues()) {
+                if (serviceUrl.toString().startsWith("service:test:tcp")) {
+                    registrations++;
+                }
+            }
+            assertEquals(1, registrations);
+        } finally {
+            autoConfigure.shutdown();
+            new File(config.restartStateFile).delete();
+        }
+    }
+
+    @Test
+    public void testRetryWithProbe() throws Exception {
+        Configuration config = new Configuration();
+        config.serviceUrl = "service:test:tcp://%s:%s";
+        config.networkInterface = NetworkInterface.getByIndex(1).getName();
+        config.restartStateFile = new File("target/.retry.restart.state").getAbsolutePath();
+        config.probeWindow = 10;
+        config.retries = 10;
+        config.retryBackoff = 10;
+        config.retryMaxBackoff = 20;
+        ServiceCollection serviceCollection = new ServiceCollection();
+        serviceCollection.service = "service:testServiceCollection:tcp";
+        serviceCollection.cardinality = 2;
+        serviceCollection.variable = "serviceCollection";
+        config.serviceCollections.add(serviceCollection);
+        AutoConfigure autoConfigure = new AutoConfigure(
+                                                        config,
+                                                        Mockito.mock(ServiceScope.class));
+        try {
+            ConfigurationFuture future = autoConfigure.configure(Collections.<String, String> emptyMap(),
+                                                                 20,
+                                                                 TimeUnit.MILLISECONDS);
+            // the probe finds a candidate, so the attempts that time out
+            // waiting for the second member are retried
+            autoConfigure.discover(reference("localhost", 1),
+                                   serviceCollection);
+            Thread.sleep(100);
+            assertFalse(future.isDone());
+
+            autoConfigure.discover(reference("localhost", 2),
+                                   serviceCollection);
+            assertNotNull(future.get(1, TimeUnit.SECONDS));
+        } finally {
+            autoConfigure.shutdown();
+            new File(config.restartStateFile).delete();
+        }
+    }
+
+    @Test
+    public void testNoServicesRequired() throws Exception {
+        Configuration config = new Configuration();
+        config.serviceUrl = "service:test:tcp://%s:%s";
+        config.networkInterface = NetworkInterface.getByIndex(1).getName();
+        config.restartStateFile = new File("target/.future.restart.state").getAbsolutePath();
+        AutoConfigure autoConfigure = new AutoConfigure(
+                                                        config,
+                                                        Mockito.mock(ServiceScope.class));
+        try {
+            Recorder recorder = new Recorder();
+            ConfigurationFuture future = autoConfigure.configure(Collections.<String, String> emptyMap(),
+                                                                 100,
+                                                                 TimeUnit.MILLISECONDS);
+            future.addCallback(recorder);
+            assertTrue(future.get(1, TimeUnit.SECONDS).isEmpty());
+            assertNotNull(recorder.succeeded.get());
+        } finally {
+            autoConfigure.shutdown();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import static com.hellblazer.autoconfigure.Fixtures.reference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.hellblazer.slp.ServiceEvent;
+import com.hellblazer.slp.ServiceEvent.EventType;
+import com.hellblazer.slp.ServiceListener;
+import com.hellblazer.slp.ServiceReference;
+
+/**
+ * @author hhildebrand
+ *
+ */
+public class TestEventDispatcher {
+    private static class Deferred implements Executor {
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        private void run() {
+            List<Runnable> pending;
+            synchronized (this) {
+                pending = new ArrayList<>(tasks);
+                tasks.clear();
+            }
+            for (Runnable task : pending) {
+                task.run();
+            }
+        }
+    }
+
+    private final List<ServiceEvent> received = new ArrayList<>();
+    private final ServiceListener    listener = new ServiceListener() {
+                                                  @Override
+                                                  public void serviceChanged(ServiceEvent event) {
+                                                      synchronized (received) {
+                                                          received.add(event);
+                                                      }
+                                                  }
+                                              };
+
+    @Test
+    public void testBounded() throws Exception {
+        Deferred executor = new Deferred();
+        final EventDispatcher dispatcher = new EventDispatcher(executor, 1);
+        dispatcher.dispatch(listener,
+                            new ServiceEvent(EventType.REGISTERED,
+                                             reference(UUID.randomUUID())));
+        final CountDownLatch dispatched = new CountDownLatch(1);
+        Thread blocked = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatcher.dispatch(listener,
+                                    new ServiceEvent(EventType.REGISTERED,
+                                                     reference(UUID.randomUUID())));
+                dispatched.countDown();
+            }
+        });
+        blocked.start();
+        assertFalse(dispatched.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, dispatcher.getQueueDepth());
+        executor.run();
+        assertTrue(dispatched.await(1, TimeUnit.SECONDS));
+        executor.run();
+        assertEquals(2, received.size());
+        assertEquals(0, dispatcher.getQueueDepth());
+    }
+
+    @Test
+    public void testCoalescing() {
+        Deferred executor = new Deferred();
+        EventDispatcher dispatcher = new EventDispatcher(executor, 10);
+        UUID a = UUID.randomUUID();
+        UUID b = UUID.randomUUID();
+        ServiceReference modified = reference(a);
+        ServiceReference unregistered = reference(b);
+        dispatcher.dispatch(listener,
+                            new ServiceEvent(EventType.REGISTERED, reference(a)));
+        dispatcher.dispatch(listener,
+                            new ServiceEvent(EventType.REGISTERED, reference(b)));
+        dispatcher.dispatch(listener, new ServiceEvent(EventType.MODIFIED,
+                                                       modified));
+        dispatcher.dispatch(listener,
+                            new ServiceEvent(EventType.UNREGISTERED,
+                                             unregistered));
+        assertEquals(2, dispatcher.getQueueDepth());
+        assertEquals(2, dispatcher.getCoalesced());
+
+        executor.run();
+        assertEquals(2, received.size());
+        assertEquals(EventType.REGISTERED, received.get(0).getType());
+        assertSame(modified, received.get(0).getReference());
+        assertEquals(EventType.UNREGISTERED, received.get(1).getType());
+        assertSame(unregistered, received.get(1).getReference());
+        assertEquals(0, dispatcher.getQueueDepth());
+        assertEquals(2, dispatcher.getDelivered());
+        assertEquals(2, dispatcher.getLag().getCount());
+    }
+
+    @Test
+    public void testReregistration() {
+        Deferred executor = new Deferred();
+        EventDispatcher dispatcher = new EventDispatcher(executor, 10);
+        UUID a = UUID.randomUUID();
+        dispatcher.dispatch(listener,
+                            new ServiceEvent(EventType.UNREGISTERED,
+                                             reference(a)));
+        dispatcher.dispatch(listener,
+                            new ServiceEvent(EventType.REGISTERED, reference(a)));
+        assertEquals(0, dispatcher.getCoalesced());
+        executor.run();
+        assertEquals(2, received.size());
+        assertEquals(EventType.UNREGISTERED, received.get(0).getType());
+        assertEquals(EventType.REGISTERED, received.get(1).getType());
+    }
+}
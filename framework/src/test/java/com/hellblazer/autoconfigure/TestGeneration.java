@@ -0,0 +1,190 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.stringtemplate.v4.ST;
+
+import com.hellblazer.autoconfigure.configuration.Configuration;
+import com.hellblazer.autoconfigure.configuration.Template;
+import com.hellblazer.slp.ServiceScope;
+import com.hellblazer.slp.ServiceURL;
+import com.hellblazer.utils.TemporaryDirectory;
+
+/**
+ * @author hhildebrand
+ *
+ */
+public class TestGeneration {
+
+    @Test
+    public void testMemoizedInputs() throws Exception {
+        try (TemporaryDirectory tempDirectory = new TemporaryDirectory(
+                                                                       "generation-",
+                                                                       "dir")) {
+            Template template = new Template();
+            template.name = "configuration2.properties";
+            template.templateGroup = "configurations/configuration2.stg";
+            template.generated = new File(tempDirectory.directory,
+                                          template.name);
+            Configuration config = new Configuration();
+            config.templates.add(template);
+            final AtomicInteger renders = new AtomicInteger();
+            AutoConfigure autoConfigure = new AutoConfigure(
+                                                            config,
+                                                            mock(ServiceScope.class)) {
+                @Override
+                protected ST instanceOf(Template template,
+                                        TemplateGroupCache.Pass groups) {
+                    renders.incrementAndGet();
+                    return super.instanceOf(template, groups);
+                }
+            };
+            try {
+                Service model = new Service(mock(ServiceURL.class),
+                                            new HashMap<String, String>());
+                Map<String, Object> variables = new HashMap<>();
+                variables.put("a", "A");
+                variables.put("unused", "X");
+                assertTrue(autoConfigure.generate(template, model, variables));
+                int rendered = renders.get();
+
+                variables.put("unused", "Y");
+                assertFalse(autoConfigure.generate(template, model, variables));
+                assertEquals(rendered, renders.get());
+
+                variables.put("a", "B");
+                assertTrue(autoConfigure.generate(template, model, variables));
+                assertEquals(rendered + 1, renders.get());
+            } finally {
+                autoConfigure.shutdown();
+            }
+
+            // the memo does not outlive the auto configuration; the template
+            // is rendered again, leaving the unchanged configuration as is
+            final AtomicInteger restarted = new AtomicInteger();
+            autoConfigure = new AutoConfigure(config, mock(ServiceScope.class)) {
+                @Override
+                protected ST instanceOf(Template template,
+                                        TemplateGroupCache.Pass groups) {
+                    restarted.incrementAndGet();
+                    return super.instanceOf(template, groups);
+                }
+            };
+            try {
+                Map<String, Object> variables = new HashMap<>();
+                variables.put("a", "B");
+                autoConfigure.inputsOf(template);
+                int rendered = restarted.get();
+                assertFalse(autoConfigure.generate(template,
+                                                   new Service(
+                                                               mock(ServiceURL.class),
+                                                               new HashMap<String, String>()),
+                                                   variables));
+                assertEquals(rendered + 1, restarted.get());
+            } finally {
+                autoConfigure.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testPermissionsPreserved() throws Exception {
+        try (TemporaryDirectory tempDirectory = new TemporaryDirectory(
+                                                                       "generation-",
+                                                                       "dir")) {
+            Template template = new Template();
+            template.name = "configuration2.properties";
+            template.templateGroup = "configurations/configuration2.stg";
+            template.generated = new File(tempDirectory.directory,
+                                          template.name);
+            Configuration config = new Configuration();
+            config.templates.add(template);
+            AutoConfigure autoConfigure = new AutoConfigure(
+                                                            config,
+                                                            mock(ServiceScope.class));
+            try {
+                Service model = new Service(mock(ServiceURL.class),
+                                            new HashMap<String, String>());
+                Map<String, Object> variables = new HashMap<>();
+                variables.put("a", "A");
+                assertTrue(autoConfigure.generate(template, model, variables));
+
+                Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+                Files.setPosixFilePermissions(template.generated.toPath(),
+                                              permissions);
+                variables.put("a", "B");
+                assertTrue(autoConfigure.generate(template, model, variables));
+                assertEquals(permissions,
+                             Files.getPosixFilePermissions(template.generated.toPath()));
+            } finally {
+                autoConfigure.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testUnchangedConfigurationNotRewritten() throws Exception {
+        try (TemporaryDirectory tempDirectory = new TemporaryDirectory(
+                                                                       "generation-",
+                                                                       "dir")) {
+            Template template = new Template();
+            template.name = "configuration2.properties";
+            template.templateGroup = "configurations/configuration2.stg";
+            template.generated = new File(tempDirectory.directory,
+                                          template.name);
+            Configuration config = new Configuration();
+            config.templates.add(template);
+            AutoConfigure autoConfigure = new AutoConfigure(
+                                                            config,
+                                                            mock(ServiceScope.class));
+            try {
+                Service model = new Service(mock(ServiceURL.class),
+                                            new HashMap<String, String>());
+                Map<String, Object> variables = new HashMap<>();
+                variables.put("a", "A");
+                assertTrue(autoConfigure.generate(template, model, variables));
+
+                long lastModified = template.generated.lastModified() - 10000;
+                template.generated.setLastModified(lastModified);
+                assertFalse(autoConfigure.generate(template, model, variables));
+                assertEquals(lastModified, template.generated.lastModified());
+
+                variables.put("a", "B");
+                assertTrue(autoConfigure.generate(template, model, variables));
+                // nothing is recorded beside the configuration
+                assertEquals(Arrays.asList(template.name),
+                             Arrays.asList(tempDirectory.directory.list()));
+            } finally {
+                autoConfigure.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.hellblazer.autoconfigure.BootstrapTimeline.Phase;
+
+/**
+ * @author hhildebrand
+ *
+ */
+public class TestLatencyHistogram {
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+        for (int i = 0; i < 90; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), histogram.getMax());
+        long p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= TimeUnit.MICROSECONDS.toNanos(100));
+        assertTrue(p50 <= TimeUnit.MICROSECONDS.toNanos(200));
+        long p99 = histogram.getPercentile(99);
+        assertTrue(p99 > TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(p99 <= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void testTimelineClosedWhenReady() {
+        Map<Phase, LatencyHistogram> latencies = new EnumMap<>(Phase.class);
+        latencies.put(Phase.DISCOVER, new LatencyHistogram());
+        BootstrapTimeline timeline = new BootstrapTimeline(latencies);
+        timeline.mark(Phase.DISCOVER, "a");
+        timeline.mark(Phase.READY, null);
+        for (int i = 0; i < 10; i++) {
+            timeline.mark(Phase.DISCOVER, "b");
+        }
+        assertEquals(2, timeline.getEntries().size());
+        assertEquals(Phase.READY, timeline.getEntries().get(1).getPhase());
+        assertEquals(11, latencies.get(Phase.DISCOVER).getCount());
+    }
+}
@@ -0,0 +1,141 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupString;
+
+import com.hellblazer.slp.ServiceScope;
+import com.hellblazer.slp.ServiceURL;
+
+/**
+ * @author hhildebrand
+ *
+ */
+public class TestModelAdaptors {
+
+    private static Service service(String host, int port, String role) {
+        ServiceURL url = mock(ServiceURL.class);
+        when(url.getHost()).thenReturn(host);
+        when(url.getPort()).thenReturn(port);
+        Map<String, String> properties = new HashMap<>();
+        properties.put("role", role);
+        properties.put(ServiceScope.SERVICE_REGISTRATION, host);
+        properties.put("totalOrderingIndex", String.valueOf(port));
+        return new Service(url, properties);
+    }
+
+    @Test
+    public void testAdaptors() {
+        STGroup group = new STGroupString(
+                                          "configuration(cluster, seeds) ::= <<\n"
+                                                  + "<cluster.cardinality> <cluster.first.host> <cluster.members:{m | <m.host>:<m.port>/<m.role>}; separator=\",\"> <seeds.first.host>:<seeds.first.port>\n"
+                                                  + ">>\n");
+        group.registerModelAdaptor(Cluster.class, new ClusterModelAdaptor());
+        group.registerModelAdaptor(Service.class, new ServiceModelAdaptor());
+        group.registerModelAdaptor(InetSocketAddress.class,
+                                   new InetSocketAddressAdaptor());
+        ST st = group.getInstanceOf("configuration");
+        st.add("cluster",
+               new Cluster<>(Arrays.asList(service("a", 1, "leader"),
+                                           service("b", 2, "follower"))));
+        st.add("seeds",
+               new Cluster<>(
+                             Arrays.asList(InetSocketAddress.createUnresolved("seed",
+                                                                              3))));
+        assertEquals("2 a a:1/leader,b:2/follower seed:3", st.render());
+    }
+
+    @Test
+    public void testViews() {
+        STGroup group = new STGroupString(
+                                          "configuration(cluster) ::= <<\n"
+                                                  + "<cluster.groupBy.role:{r | <r>=<cluster.groupBy.role.(r).endpoints>}; separator=\" \">\n"
+                                                  + "<cluster.sortedBy.port.members:{m | <m.host>}; separator=\",\">\n"
+                                                  + "<cluster.others.endpoints>\n"
+                                                  + "<cluster.byId.(\"10\").host>\n"
+                                                  + ">>\n");
+        group.registerModelAdaptor(Cluster.class, new ClusterModelAdaptor());
+        group.registerModelAdaptor(Service.class, new ServiceModelAdaptor());
+        ST st = group.getInstanceOf("configuration");
+        Cluster<Service> cluster = new Cluster<>(
+                                                 Arrays.asList(service("a",
+                                                                       10,
+                                                                       "leader"),
+                                                               service("b",
+                                                                       9,
+                                                                       "follower"),
+                                                               service("c",
+                                                                       2,
+                                                                       "follower")),
+                                                 "totalOrderingIndex", "b");
+        st.add("cluster", cluster);
+        assertEquals("follower=b:9,c:2 leader=a:10\nc,b,a\na:10,c:2\na",
+                     st.render());
+        assertSame(cluster.getOthers(), cluster.getOthers());
+        assertSame(cluster.getSortedBy().get("port"),
+                   cluster.getSortedBy().get("port"));
+        assertSame(cluster.getGroupBy().get("role"),
+                   cluster.getGroupBy().get("role"));
+    }
+
+    @Test
+    public void testPropertySlots() {
+        STGroup group = new STGroupString(
+                                          "configuration(cluster) ::= <<\n"
+                                                  + "<cluster.members:{m | <m.slottedRole>}; separator=\",\">\n"
+                                                  + ">>\n");
+        group.registerModelAdaptor(Cluster.class, new ClusterModelAdaptor());
+        group.registerModelAdaptor(Service.class, new ServiceModelAdaptor());
+        group.load();
+        int assigned = PropertySlots.size();
+        PropertySlots.assign(group);
+        assertTrue(PropertySlots.size() > assigned);
+        assigned = PropertySlots.size();
+        int slot = PropertySlots.slotOf("slottedRole");
+        assertEquals("slot assigned when the group was compiled", assigned,
+                     PropertySlots.size());
+        assertEquals("slottedRole", PropertySlots.nameOf(slot));
+
+        Service leader = service("a", 1, "leader").withProperty("slottedRole",
+                                                                "leader");
+        Service follower = service("b", 2, "follower");
+        assertEquals("leader", leader.valueOf(slot));
+        assertSame(leader.valueOf(slot), leader.valueOf(slot));
+        assertNull(follower.valueOf(slot));
+        assertEquals(1, leader.valueOf(PropertySlots.PORT));
+
+        ST st = group.getInstanceOf("configuration");
+        st.add("cluster",
+               new Cluster<>(Arrays.asList(leader,
+                                           follower.withProperty("slottedRole",
+                                                                 "follower"))));
+        assertEquals("leader,follower", st.render());
+    }
+}
@@ -0,0 +1,247 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import static com.hellblazer.autoconfigure.Fixtures.properties;
+import static com.hellblazer.autoconfigure.Fixtures.reference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.hellblazer.slp.ServiceEvent;
+import com.hellblazer.slp.ServiceEvent.EventType;
+import com.hellblazer.slp.ServiceListener;
+import com.hellblazer.slp.ServiceReference;
+import com.hellblazer.utils.LabeledThreadFactory;
+
+/**
+ * @author hhildebrand
+ *
+ */
+public class TestMultiplexingServiceListener {
+    private static class Recorder implements ServiceListener {
+        private final List<ServiceEvent> events = new ArrayList<>();
+
+        @Override
+        public void serviceChanged(ServiceEvent event) {
+            events.add(event);
+        }
+    }
+
+    @Test
+    public void testReplayDispatched() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor(new LabeledThreadFactory(
+                                                                                           "Test Dispatch Thread"));
+        try {
+            EventDispatcher dispatcher = new EventDispatcher(executor, 10);
+            MultiplexingServiceListener multiplexer = new MultiplexingServiceListener(
+                                                                                      "service:test:tcp",
+                                                                                      dispatcher);
+            ServiceReference known = reference(properties("rack", "a"));
+            multiplexer.serviceChanged(new ServiceEvent(EventType.REGISTERED,
+                                                        known));
+            final List<ServiceReference> deliveries = Collections.synchronizedList(new ArrayList<ServiceReference>());
+            final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+            final CountDownLatch delivered = new CountDownLatch(2);
+            multiplexer.add(new ServiceListener() {
+                @Override
+                public void serviceChanged(ServiceEvent event) {
+                    deliveries.add(event.getReference());
+                    threads.add(Thread.currentThread().getName());
+                    delivered.countDown();
+                }
+            }, null);
+            ServiceReference live = reference(properties("rack", "b"));
+            multiplexer.serviceChanged(new ServiceEvent(EventType.REGISTERED,
+                                                        live));
+            assertTrue(delivered.await(1, TimeUnit.SECONDS));
+            // the replay is delivered by the dispatcher, not the thread
+            // adding the listener, and ahead of the live registration
+            assertEquals(Arrays.asList(known, live), deliveries);
+            for (String thread : threads) {
+                assertTrue(thread, thread.startsWith("Test Dispatch Thread"));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testReplayWithoutLock() throws Exception {
+        final MultiplexingServiceListener multiplexer = new MultiplexingServiceListener(
+                                                                                        "service:test:tcp");
+        multiplexer.serviceChanged(new ServiceEvent(EventType.REGISTERED,
+                                                    reference(properties("rack", "a"))));
+        final CountDownLatch queried = new CountDownLatch(1);
+        ServiceListener late = new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                // another thread uses the multiplexer during the replay
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        multiplexer.getKnownCardinality();
+                        queried.countDown();
+                    }
+                }).start();
+                try {
+                    assertTrue("multiplexer locked during replay",
+                               queried.await(1, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        multiplexer.add(late, null);
+        assertEquals(0, queried.getCount());
+    }
+
+    @Test
+    public void testRouting() {
+        MultiplexingServiceListener multiplexer = new MultiplexingServiceListener(
+                                                                                  "service:test:tcp");
+        Recorder all = new Recorder();
+        Recorder rackA = new Recorder();
+        Recorder rackAPrimary = new Recorder();
+        Recorder hasRole = new Recorder();
+        multiplexer.add(all, null);
+        multiplexer.add(rackA, properties("rack", "a"));
+        multiplexer.add(rackAPrimary, properties("rack", "a", "role", "primary"));
+        multiplexer.add(hasRole, properties("role", MultiplexingServiceListener.PRESENT));
+
+        multiplexer.serviceChanged(new ServiceEvent(EventType.REGISTERED,
+                                                    reference(properties("rack", "a"))));
+        multiplexer.serviceChanged(new ServiceEvent(EventType.REGISTERED,
+                                                    reference(properties("rack", "a",
+                                                                         "role", "primary"))));
+        multiplexer.serviceChanged(new ServiceEvent(EventType.REGISTERED,
+                                                    reference(properties("rack", "b",
+                                                                         "role", "backup"))));
+
+        assertEquals(3, all.events.size());
+        assertEquals(2, rackA.events.size());
+        assertEquals(1, rackAPrimary.events.size());
+        assertEquals(2, hasRole.events.size());
+        assertEquals(3, multiplexer.getKnownCardinality());
+    }
+
+    @Test
+    public void testSubstringConstraints() {
+        MultiplexingServiceListener multiplexer = new MultiplexingServiceListener(
+                                                                                  "service:test:tcp");
+        Recorder prefix = new Recorder();
+        Recorder infix = new Recorder();
+        Recorder exact = new Recorder();
+        multiplexer.add(prefix, properties("rack", "a*"));
+        multiplexer.add(infix, properties("host", "*web*", "rack", "a*"));
+        multiplexer.add(exact, properties("rack", "a"));
+
+        multiplexer.serviceChanged(new ServiceEvent(EventType.REGISTERED,
+                                                    reference(properties("rack", "a"))));
+        multiplexer.serviceChanged(new ServiceEvent(EventType.REGISTERED,
+                                                    reference(properties("rack", "ab",
+                                                                         "host", "x-web-1"))));
+        multiplexer.serviceChanged(new ServiceEvent(EventType.REGISTERED,
+                                                    reference(properties("rack", "ba",
+                                                                         "host", "web"))));
+
+        assertEquals(2, prefix.events.size());
+        assertEquals(1, infix.events.size());
+        assertEquals(1, exact.events.size());
+
+        Recorder late = new Recorder();
+        multiplexer.add(late, properties("host", "*web"));
+        assertEquals(1, late.events.size());
+        assertTrue(multiplexer.remove(infix));
+        multiplexer.serviceChanged(new ServiceEvent(EventType.REGISTERED,
+                                                    reference(properties("rack", "ac",
+                                                                         "host", "web"))));
+        assertEquals(1, infix.events.size());
+        assertEquals(3, prefix.events.size());
+        assertEquals(2, late.events.size());
+    }
+
+    @Test
+    public void testReplayAndRemoval() {
+        MultiplexingServiceListener multiplexer = new MultiplexingServiceListener(
+                                                                                  "service:test:tcp");
+        ServiceReference a = reference(properties("rack", "a"));
+        ServiceReference b = reference(properties("rack", "b"));
+        multiplexer.serviceChanged(new ServiceEvent(EventType.REGISTERED, a));
+        multiplexer.serviceChanged(new ServiceEvent(EventType.REGISTERED, b));
+        multiplexer.serviceChanged(new ServiceEvent(EventType.UNREGISTERED, b));
+
+        Recorder late = new Recorder();
+        multiplexer.add(late, properties("rack", "a"));
+        assertEquals(1, late.events.size());
+        assertEquals(a, late.events.get(0).getReference());
+
+        assertTrue(multiplexer.remove(late));
+        multiplexer.serviceChanged(new ServiceEvent(EventType.MODIFIED, a));
+        assertEquals(1, late.events.size());
+        assertTrue(multiplexer.isEmpty());
+    }
+
+    @Test
+    public void testReplayPrecedesLiveEvents() throws Exception {
+        final MultiplexingServiceListener multiplexer = new MultiplexingServiceListener(
+                                                                                        "service:test:tcp");
+        final ServiceReference a = reference(properties("rack", "a"));
+        multiplexer.serviceChanged(new ServiceEvent(EventType.REGISTERED, a));
+        multiplexer.serviceChanged(new ServiceEvent(EventType.MODIFIED, a));
+
+        final List<EventType> received = Collections.synchronizedList(new ArrayList<EventType>());
+        final Thread[] unregistering = new Thread[1];
+        ServiceListener late = new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                received.add(event.getType());
+                if (unregistering[0] != null) {
+                    return;
+                }
+                // the member leaves while its registration is being replayed
+                unregistering[0] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        multiplexer.serviceChanged(new ServiceEvent(
+                                                                    EventType.UNREGISTERED,
+                                                                    a));
+                    }
+                });
+                unregistering[0].start();
+                try {
+                    unregistering[0].join(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        multiplexer.add(late, properties("rack", "a"));
+        unregistering[0].join();
+        assertEquals(Arrays.asList(EventType.REGISTERED, EventType.MODIFIED,
+                                   EventType.UNREGISTERED), received);
+        assertEquals(0, multiplexer.getKnownCardinality());
+    }
+}
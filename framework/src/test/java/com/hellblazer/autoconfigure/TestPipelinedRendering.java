@@ -0,0 +1,155 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import static com.hellblazer.autoconfigure.Fixtures.configuration;
+import static com.hellblazer.autoconfigure.Fixtures.reference;
+import static com.hellblazer.autoconfigure.Fixtures.start;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.hellblazer.autoconfigure.Fixtures.RecordingService;
+import com.hellblazer.autoconfigure.configuration.Configuration;
+import com.hellblazer.autoconfigure.configuration.ServiceCollection;
+import com.hellblazer.slp.ServiceScope;
+import com.hellblazer.utils.Condition;
+import com.hellblazer.utils.TemporaryDirectory;
+import com.hellblazer.utils.Utils;
+
+/**
+ * @author hhildebrand
+ *
+ */
+public class TestPipelinedRendering {
+
+    @Test
+    public void testDeclaredUses() throws Exception {
+        try (TemporaryDirectory tempDirectory = new TemporaryDirectory(
+                                                                       "pipelined-",
+                                                                       "dir")) {
+            Configuration config = configuration(tempDirectory.directory,
+                                                 "configuration1",
+                                                 "configuration2");
+            config.templates.get(1).uses = Arrays.asList("service");
+            AutoConfigure autoConfigure = new AutoConfigure(
+                                                            config,
+                                                            mock(ServiceScope.class));
+            final RecordingService service = start(autoConfigure, 10,
+                                                   TimeUnit.SECONDS);
+            try {
+                autoConfigure.discover(reference("localhost", 99),
+                                       config.services.get(0));
+                awaitHandoff(service, "configuration2.properties");
+                assertFalse(service.succeeded.get());
+            } finally {
+                autoConfigure.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testPartialMembershipNotRendered() throws Exception {
+        try (TemporaryDirectory tempDirectory = new TemporaryDirectory(
+                                                                       "pipelined-",
+                                                                       "dir")) {
+            Configuration config = configuration(tempDirectory.directory,
+                                                 "configuration1",
+                                                 "configuration2");
+            config.templates.get(1).uses = Arrays.asList("serviceCollection");
+            ServiceCollection serviceCollection = config.serviceCollections.get(0);
+            serviceCollection.quorum = 1;
+            AutoConfigure autoConfigure = new AutoConfigure(
+                                                            config,
+                                                            mock(ServiceScope.class));
+            final RecordingService service = start(autoConfigure, 10,
+                                                   TimeUnit.SECONDS);
+            try {
+                autoConfigure.discover(reference("localhost", 1),
+                                       serviceCollection);
+                Thread.sleep(100);
+                // the quorum has been met, but the members are not ordered
+                // until all of them have been discovered
+                assertFalse(service.handedOff.containsKey("configuration2.properties"));
+
+                autoConfigure.discover(reference("localhost", 2),
+                                       serviceCollection);
+                awaitHandoff(service, "configuration2.properties");
+                assertFalse(service.succeeded.get());
+            } finally {
+                autoConfigure.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testRenderAheadOfCompletion() throws Exception {
+        try (TemporaryDirectory tempDirectory = new TemporaryDirectory(
+                                                                       "pipelined-",
+                                                                       "dir")) {
+            Configuration config = configuration(tempDirectory.directory,
+                                                 "configuration1",
+                                                 "configuration2");
+            AutoConfigure autoConfigure = new AutoConfigure(
+                                                            config,
+                                                            mock(ServiceScope.class));
+            final RecordingService service = start(autoConfigure, 10,
+                                                   TimeUnit.SECONDS);
+            try {
+                awaitHandoff(service, "configuration1.properties");
+                autoConfigure.discover(reference("localhost", 99),
+                                       config.services.get(0));
+                Thread.sleep(100);
+                assertFalse(service.handedOff.containsKey("configuration2.properties"));
+                assertFalse(config.templates.get(1).generated.exists());
+
+                autoConfigure.discover(reference("localhost", 1),
+                                       config.serviceCollections.get(0));
+                autoConfigure.discover(reference("localhost", 2),
+                                       config.serviceCollections.get(0));
+                assertTrue("configuration did not succeed",
+                           Utils.waitForCondition(1000, new Condition() {
+                               @Override
+                               public boolean isTrue() {
+                                   return service.succeeded.get();
+                               }
+                           }));
+                assertTrue(config.templates.get(1).generated.exists());
+                assertEquals(config.templates.get(0).generated,
+                             autoConfigure.getGeneratedConfigurations().get("configuration1.properties"));
+            } finally {
+                autoConfigure.shutdown();
+            }
+        }
+    }
+
+    private void awaitHandoff(final RecordingService service,
+                              final String name) {
+        assertTrue(String.format("configuration %s was not handed off", name),
+                   Utils.waitForCondition(1000, new Condition() {
+                       @Override
+                       public boolean isTrue() {
+                           return service.handedOff.containsKey(name);
+                       }
+                   }));
+        assertTrue(service.handedOff.get(name).exists());
+    }
+}
@@ -0,0 +1,351 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import static com.hellblazer.autoconfigure.Fixtures.configuration;
+import static com.hellblazer.autoconfigure.Fixtures.load;
+import static com.hellblazer.autoconfigure.Fixtures.reference;
+import static com.hellblazer.autoconfigure.Fixtures.start;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.hellblazer.autoconfigure.Fixtures.RecordingService;
+import com.hellblazer.autoconfigure.configuration.Configuration;
+import com.hellblazer.autoconfigure.configuration.ServiceCollection;
+import com.hellblazer.slp.ServiceEvent;
+import com.hellblazer.slp.ServiceEvent.EventType;
+import com.hellblazer.slp.ServiceListener;
+import com.hellblazer.slp.ServiceReference;
+import com.hellblazer.slp.ServiceScope;
+import com.hellblazer.utils.Condition;
+import com.hellblazer.utils.TemporaryDirectory;
+import com.hellblazer.utils.Utils;
+
+/**
+ * @author hhildebrand
+ *
+ */
+public class TestReconfiguration {
+
+    @Mock
+    private ServiceScope discovery;
+
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test
+    public void testCoalescedChurn() throws Exception {
+        try (TemporaryDirectory tempDirectory = new TemporaryDirectory(
+                                                                       "reconfiguration-",
+                                                                       "dir")) {
+            Configuration config = continuous(tempDirectory.directory);
+            // the batch is processed only when flushed
+            config.coalescingWindow = TimeUnit.MINUTES.toMillis(1);
+            config.coalescingMaxDelay = 0;
+            ServiceCollection serviceCollection = config.serviceCollections.get(0);
+            ExecutorService dispatcher = Executors.newSingleThreadExecutor();
+            final AutoConfigureEngine engine = new AutoConfigureEngine(
+                                                                       discovery,
+                                                                       null,
+                                                                       Executors.newSingleThreadScheduledExecutor(),
+                                                                       dispatcher);
+            try {
+                AutoConfigure autoConfigure = engine.host(config);
+                ServiceReference member1 = reference("localhost", 1);
+                ServiceReference member2 = reference("localhost", 2);
+                RecordingService service = configure(autoConfigure, config,
+                                                     member1, member2);
+                ServiceListener listener = listenerFor(serviceCollection);
+
+                // hold the dispatcher, so that the churn is queued before
+                // any of it is delivered
+                final CountDownLatch hold = new CountDownLatch(1);
+                dispatcher.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            hold.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+                final long delivered = engine.getEvents().getDelivered();
+                ServiceReference member3 = reference("localhost", 3);
+                ServiceReference member4 = reference("localhost", 4);
+                listener.serviceChanged(new ServiceEvent(EventType.REGISTERED,
+                                                         member3));
+                listener.serviceChanged(new ServiceEvent(EventType.UNREGISTERED,
+                                                         member2));
+                listener.serviceChanged(new ServiceEvent(EventType.MODIFIED,
+                                                         member3));
+                listener.serviceChanged(new ServiceEvent(EventType.REGISTERED,
+                                                         member4));
+                listener.serviceChanged(new ServiceEvent(EventType.UNREGISTERED,
+                                                         member4));
+                hold.countDown();
+                // the events of member3 and of member4 are coalesced by the
+                // dispatcher, leaving one event for each of the members
+                assertTrue("events were not delivered",
+                           Utils.waitForCondition(1000, new Condition() {
+                               @Override
+                               public boolean isTrue() {
+                                   return engine.getEvents().getDelivered() == delivered + 3;
+                               }
+                           }));
+                assertEquals(2, engine.getEvents().getCoalesced());
+                assertEquals(0, autoConfigure.getChanges().getBatches());
+                assertEquals(0, service.reconfigurations.get());
+
+                autoConfigure.getChanges().flush();
+                assertEquals(1, service.reconfigurations.get());
+                assertEquals(1, autoConfigure.getChanges().getBatches());
+                assertEquals(3, autoConfigure.getChanges().getLastAbsorbed());
+                String members = load(service.reconfigured.get().get("configuration2.properties")).getProperty("serviceCollection");
+                assertTrue(members.contains("localhost:1,"));
+                assertTrue(members.contains("localhost:3,"));
+                assertFalse(members.contains("localhost:2,"));
+                assertFalse(members.contains("localhost:4,"));
+                autoConfigure.shutdown();
+            } finally {
+                engine.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testCollectionMemberUnregistered() throws Exception {
+        try (TemporaryDirectory tempDirectory = new TemporaryDirectory(
+                                                                       "reconfiguration-",
+                                                                       "dir")) {
+            Configuration config = continuous(tempDirectory.directory);
+            ServiceCollection serviceCollection = config.serviceCollections.get(0);
+            ServiceReference member1 = reference("localhost", 1);
+            ServiceReference member2 = reference("localhost", 2);
+            AutoConfigure autoConfigure = new AutoConfigure(config, discovery);
+            RecordingService service = configure(autoConfigure, config,
+                                                 member1, member2);
+            String members = load(config.templates.get(0).generated).getProperty("serviceCollection");
+            assertTrue(members.contains("localhost:1,"));
+            assertTrue(members.contains("localhost:2,"));
+
+            listenerFor(serviceCollection).serviceChanged(new ServiceEvent(
+                                                                           EventType.UNREGISTERED,
+                                                                           member2));
+            File regenerated = awaitReconfigured(service).get("configuration2.properties");
+            assertEquals("localhost:1,",
+                         load(regenerated).getProperty("serviceCollection"));
+            autoConfigure.shutdown();
+        }
+    }
+
+    @Test
+    public void testQuorum() throws Exception {
+        try (TemporaryDirectory tempDirectory = new TemporaryDirectory(
+                                                                       "reconfiguration-",
+                                                                       "dir")) {
+            Configuration config = continuous(tempDirectory.directory);
+            ServiceCollection serviceCollection = config.serviceCollections.get(0);
+            serviceCollection.cardinality = 3;
+            serviceCollection.quorum = 2;
+            serviceCollection.gracePeriod = 50;
+            ServiceReference member1 = reference("localhost", 1);
+            ServiceReference member2 = reference("localhost", 2);
+            AutoConfigure autoConfigure = new AutoConfigure(config, discovery);
+            RecordingService service = configure(autoConfigure, config,
+                                                 member1, member2);
+            String members = load(config.templates.get(0).generated).getProperty("serviceCollection");
+            assertTrue(members.contains("localhost:1,"));
+            assertTrue(members.contains("localhost:2,"));
+
+            listenerFor(serviceCollection).serviceChanged(new ServiceEvent(
+                                                                           EventType.REGISTERED,
+                                                                           reference("localhost",
+                                                                                     3)));
+            members = load(awaitReconfigured(service).get("configuration2.properties")).getProperty("serviceCollection");
+            assertTrue(members.contains("localhost:3,"));
+            assertEquals(3, serviceCollection.getDiscoveredCardinality());
+            autoConfigure.shutdown();
+        }
+    }
+
+    @Test
+    public void testRegisteredBeforeConfigured() throws Exception {
+        try (TemporaryDirectory tempDirectory = new TemporaryDirectory(
+                                                                       "reconfiguration-",
+                                                                       "dir")) {
+            Configuration config = continuous(tempDirectory.directory);
+            final ServiceCollection serviceCollection = config.serviceCollections.get(0);
+            final ServiceReference member3 = reference("localhost", 3);
+            final AtomicLong submitted = new AtomicLong(-1);
+            final AtomicInteger cardinality = new AtomicInteger();
+            final AutoConfigureEngine engine = new AutoConfigureEngine(
+                                                                       discovery,
+                                                                       null);
+            try {
+                final AutoConfigure autoConfigure = engine.host(config);
+                RecordingService service = new RecordingService(autoConfigure) {
+                    @Override
+                    public void succeed(Map<String, File> configurations)
+                                                                         throws Exception {
+                        // the configurations have been generated, but the
+                        // configured service has yet to succeed
+                        final long delivered = engine.getEvents().getDelivered();
+                        listenerFor(serviceCollection).serviceChanged(new ServiceEvent(
+                                                                                       EventType.REGISTERED,
+                                                                                       member3));
+                        assertTrue("registration was not delivered",
+                                   Utils.waitForCondition(1000,
+                                                          new Condition() {
+                                                              @Override
+                                                              public boolean isTrue() {
+                                                                  return engine.getEvents().getDelivered() > delivered;
+                                                              }
+                                                          }));
+                        submitted.set(autoConfigure.getChanges().getEvents());
+                        cardinality.set(serviceCollection.getDiscoveredCardinality());
+                        super.succeed(configurations);
+                    }
+                };
+                service.start(1000, TimeUnit.MILLISECONDS);
+                configure(autoConfigure, config, service,
+                          reference("localhost", 1), reference("localhost", 2));
+                Map<String, File> reconfigured = awaitReconfigured(service);
+                // the registration was deferred along with the other changes
+                assertEquals(0, submitted.get());
+                assertEquals(2, cardinality.get());
+                assertEquals(1, autoConfigure.getChanges().getBatches());
+                String members = load(reconfigured.get("configuration2.properties")).getProperty("serviceCollection");
+                assertTrue(members.contains("localhost:3,"));
+                assertEquals(3, serviceCollection.getDiscoveredCardinality());
+                autoConfigure.shutdown();
+            } finally {
+                engine.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testUnregisteredBeforeGeneration() throws Exception {
+        try (TemporaryDirectory tempDirectory = new TemporaryDirectory(
+                                                                       "reconfiguration-",
+                                                                       "dir")) {
+            Configuration config = continuous(tempDirectory.directory);
+            ServiceCollection serviceCollection = config.serviceCollections.get(0);
+            serviceCollection.cardinality = 3;
+            serviceCollection.quorum = 2;
+            serviceCollection.gracePeriod = 200;
+            AutoConfigure autoConfigure = new AutoConfigure(config, discovery);
+            RecordingService service = start(autoConfigure, 1000,
+                                             TimeUnit.MILLISECONDS);
+            autoConfigure.discover(reference("localhost", 99),
+                                   config.services.get(0));
+            ServiceReference member1 = reference("localhost", 1);
+            ServiceReference member2 = reference("localhost", 2);
+            autoConfigure.discover(member1, serviceCollection);
+            autoConfigure.discover(member2, serviceCollection);
+
+            // the member leaves during the grace period, before the
+            // configuration has been generated
+            listenerFor(serviceCollection).serviceChanged(new ServiceEvent(
+                                                                           EventType.UNREGISTERED,
+                                                                           member2));
+            awaitSuccess(service);
+            File regenerated = awaitReconfigured(service).get("configuration2.properties");
+            assertEquals("localhost:1,",
+                         load(regenerated).getProperty("serviceCollection"));
+            assertEquals(1, serviceCollection.getDiscoveredCardinality());
+            autoConfigure.shutdown();
+        }
+    }
+
+    private Map<String, File> awaitReconfigured(final RecordingService service) {
+        assertTrue("configuration was not regenerated",
+                   Utils.waitForCondition(1000, new Condition() {
+                       @Override
+                       public boolean isTrue() {
+                           return service.reconfigured.get() != null;
+                       }
+                   }));
+        return service.reconfigured.get();
+    }
+
+    private void awaitSuccess(final RecordingService service) {
+        assertTrue("configuration did not succeed",
+                   Utils.waitForCondition(1000, new Condition() {
+                       @Override
+                       public boolean isTrue() {
+                           return service.succeeded.get();
+                       }
+                   }));
+    }
+
+    private RecordingService configure(AutoConfigure autoConfigure,
+                                       Configuration config,
+                                       RecordingService service,
+                                       ServiceReference... members) {
+        autoConfigure.discover(reference("localhost", 99),
+                               config.services.get(0));
+        for (ServiceReference member : members) {
+            autoConfigure.discover(member, config.serviceCollections.get(0));
+        }
+        awaitSuccess(service);
+        return service;
+    }
+
+    private RecordingService configure(AutoConfigure autoConfigure,
+                                       Configuration config,
+                                       ServiceReference... members) {
+        return configure(autoConfigure, config,
+                         start(autoConfigure, 100, TimeUnit.MILLISECONDS),
+                         members);
+    }
+
+    private Configuration continuous(File directory) throws Exception {
+        Configuration config = configuration(directory, "configuration2");
+        config.continuous = true;
+        return config;
+    }
+
+    private ServiceListener listenerFor(ServiceCollection serviceCollection)
+                                                                           throws Exception {
+        ArgumentCaptor<ServiceListener> listener = ArgumentCaptor.forClass(ServiceListener.class);
+        verify(discovery).addServiceListener(listener.capture(),
+                                             eq(AutoConfigure.constructFilter(serviceCollection.service,
+                                                                              Collections.<String, String> emptyMap())));
+        return listener.getValue();
+    }
+}
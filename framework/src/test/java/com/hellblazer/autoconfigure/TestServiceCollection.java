@@ -0,0 +1,219 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import static com.hellblazer.autoconfigure.Fixtures.reference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.hellblazer.autoconfigure.configuration.ServiceCollection;
+import com.hellblazer.slp.ServiceReference;
+
+/**
+ * @author hhildebrand
+ *
+ */
+public class TestServiceCollection {
+
+    @Test
+    public void testAdvertisedIndex() {
+        ServiceCollection serviceCollection = new ServiceCollection();
+        serviceCollection.cardinality = 2;
+        UUID advertising = UUID.randomUUID();
+        ServiceReference reference = reference(advertising, 1);
+        reference.getProperties().put(serviceCollection.idProperty, "2");
+        UUID other = UUID.randomUUID();
+        assertTrue(serviceCollection.discover(reference));
+        assertTrue(serviceCollection.discover(reference(other, 2)));
+        serviceCollection.getCluster();
+        assertEquals("2", serviceCollection.totalOrderingIndexOf(advertising));
+        assertEquals("1", serviceCollection.totalOrderingIndexOf(other));
+
+        UUID conflicting = UUID.randomUUID();
+        reference = reference(conflicting, 3);
+        reference.getProperties().put(serviceCollection.idProperty, "1");
+        assertTrue(serviceCollection.discover(reference));
+        serviceCollection.getCluster();
+        assertEquals("3", serviceCollection.totalOrderingIndexOf(conflicting));
+        assertEquals("1", serviceCollection.totalOrderingIndexOf(other));
+    }
+
+    @Test
+    public void testConcurrentDiscovery() throws Exception {
+        final ServiceCollection serviceCollection = new ServiceCollection();
+        serviceCollection.cardinality = 64;
+        final List<UUID> registrations = new ArrayList<>();
+        for (int i = 0; i < serviceCollection.cardinality; i++) {
+            registrations.add(UUID.randomUUID());
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = offset; i < registrations.size(); i += 4) {
+                        serviceCollection.discover(reference(registrations.get(i),
+                                                             i + 1));
+                        serviceCollection.getCluster();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(serviceCollection.isSatisfied());
+        assertEquals(registrations.size(),
+                     serviceCollection.getCluster().getMembers().size());
+        Set<String> indices = new HashSet<>();
+        for (UUID registration : registrations) {
+            String index = serviceCollection.totalOrderingIndexOf(registration);
+            assertNotNull(index);
+            assertTrue(indices.add(index));
+        }
+    }
+
+    @Test
+    public void testConcurrentChurn() throws Exception {
+        final ServiceCollection serviceCollection = new ServiceCollection();
+        final List<ServiceReference> references = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            references.add(reference(UUID.randomUUID(), i + 1));
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = offset; i < references.size(); i += 4) {
+                        serviceCollection.discover(references.get(i));
+                        serviceCollection.getCluster();
+                        if (i % 2 == 0) {
+                            serviceCollection.update(references.get(i));
+                            serviceCollection.remove(references.get(i));
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(references.size() / 2,
+                     serviceCollection.getDiscoveredCardinality());
+        assertEquals(references.size() / 2,
+                     serviceCollection.getCluster().getMembers().size());
+        Set<String> indices = new HashSet<>();
+        for (int i = 0; i < references.size(); i++) {
+            String index = serviceCollection.totalOrderingIndexOf(references.get(i).getRegistration());
+            if (i % 2 == 0) {
+                assertNull(index);
+            } else {
+                assertNotNull(index);
+                assertTrue(indices.add(index));
+            }
+        }
+    }
+
+    @Test
+    public void testIncrementalOrdering() {
+        ServiceCollection serviceCollection = new ServiceCollection();
+        serviceCollection.cardinality = 3;
+        UUID[] registrations = new UUID[3];
+        for (int i = 0; i < registrations.length; i++) {
+            registrations[i] = UUID.randomUUID();
+            serviceCollection.discover(reference(registrations[i], i));
+        }
+        serviceCollection.getCluster();
+        Map<UUID, String> indices = new HashMap<>();
+        for (UUID registration : registrations) {
+            indices.put(registration,
+                        serviceCollection.totalOrderingIndexOf(registration));
+        }
+        assertEquals(3, new HashSet<>(indices.values()).size());
+
+        assertTrue(serviceCollection.remove(reference(registrations[1], 1)));
+        UUID replacement = UUID.randomUUID();
+        serviceCollection.discover(reference(replacement, 4));
+        assertEquals(3, serviceCollection.getCluster().getCardinality());
+        assertEquals(indices.get(registrations[0]),
+                     serviceCollection.totalOrderingIndexOf(registrations[0]));
+        assertEquals(indices.get(registrations[2]),
+                     serviceCollection.totalOrderingIndexOf(registrations[2]));
+        assertEquals(indices.get(registrations[1]),
+                     serviceCollection.totalOrderingIndexOf(replacement));
+
+        assertTrue(serviceCollection.update(reference(registrations[0], 5)));
+        assertEquals(indices.get(registrations[0]),
+                     serviceCollection.totalOrderingIndexOf(registrations[0]));
+    }
+
+    @Test
+    public void testRedelivery() {
+        ServiceCollection serviceCollection = new ServiceCollection();
+        serviceCollection.cardinality = 2;
+        UUID registration = UUID.randomUUID();
+        assertTrue(serviceCollection.discover(reference(registration, 1)));
+        assertFalse(serviceCollection.discover(reference(registration, 1)));
+        assertEquals(1, serviceCollection.getDiscoveredCardinality());
+        assertFalse(serviceCollection.isSatisfied());
+
+        UUID other = UUID.randomUUID();
+        assertTrue(serviceCollection.discover(reference(other, 2)));
+        assertTrue(serviceCollection.isSatisfied());
+        assertEquals(2, serviceCollection.getCluster().getCardinality());
+        assertNotNull(serviceCollection.totalOrderingIndexOf(registration));
+
+        assertTrue(serviceCollection.remove(reference(other, 2)));
+        assertFalse(serviceCollection.remove(reference(other, 2)));
+        assertNull(serviceCollection.totalOrderingIndexOf(other));
+        assertFalse(serviceCollection.update(reference(other, 3)));
+        assertEquals(1, serviceCollection.getDiscoveredCardinality());
+    }
+}
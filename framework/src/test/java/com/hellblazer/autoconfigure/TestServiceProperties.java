@@ -0,0 +1,142 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hellblazer.autoconfigure.configuration.RestartState;
+import com.hellblazer.slp.ServiceScope;
+
+/**
+ * @author hhildebrand
+ *
+ */
+public class TestServiceProperties {
+
+    @Test
+    public void testDerive() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("b", "2");
+        properties.put("d", "4");
+        ServiceProperties original = ServiceProperties.of(properties);
+        ServiceProperties derived = original.with("c", "3").with("a", "1").with("e",
+                                                                                 "5");
+        assertEquals(properties, original);
+        assertEquals("{a=1, b=2, c=3, d=4, e=5}", derived.toString());
+        assertSame(derived, derived.with("c", "3"));
+        assertEquals("30", derived.with("c", "30").get("c"));
+        assertEquals("3", derived.get("c"));
+        assertNull(derived.get("f"));
+        assertFalse(derived.containsKey("f"));
+    }
+
+    @Test
+    public void testHighCardinalityNotInterned() {
+        ServiceProperties last = null;
+        for (int i = 0; i < 1000; i++) {
+            last = ServiceProperties.of(Collections.singletonMap("address",
+                                                                 new String(
+                                                                            "10.0.0."
+                                                                                    + i)));
+        }
+        ServiceProperties same = ServiceProperties.of(Collections.singletonMap("address",
+                                                                               new String(
+                                                                                          "10.0.0.999")));
+        assertEquals(last, same);
+        assertNotSame(last.get("address"), same.get("address"));
+    }
+
+    @Test
+    public void testImmutable() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("a", "1");
+        ServiceProperties compact = ServiceProperties.of(properties);
+        properties.put("a", "2");
+        assertEquals("1", compact.get("a"));
+        try {
+            compact.put("a", "3");
+            fail("properties should be immutable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testInterning() {
+        Map<String, String> first = new HashMap<>();
+        first.put(new String("role"), new String("follower"));
+        Map<String, String> second = new HashMap<>();
+        second.put(new String("role"), new String("follower"));
+        ServiceProperties a = ServiceProperties.of(first);
+        ServiceProperties b = ServiceProperties.of(second);
+        assertSame(a.keySet().iterator().next(),
+                   b.keySet().iterator().next());
+        assertSame(a.get("role"), b.get("role"));
+        assertEquals(a, b);
+        assertEquals(first.hashCode(), a.hashCode());
+    }
+
+    @Test
+    public void testRegistrationNotInterned() {
+        String registration = UUID.randomUUID().toString();
+        ServiceProperties a = ServiceProperties.of(Collections.singletonMap(ServiceScope.SERVICE_REGISTRATION,
+                                                                            new String(
+                                                                                       registration)));
+        ServiceProperties b = ServiceProperties.of(Collections.singletonMap(ServiceScope.SERVICE_REGISTRATION,
+                                                                            new String(
+                                                                                       registration)));
+        assertSame(a.keySet().iterator().next(),
+                   b.keySet().iterator().next());
+        assertNotSame(a.get(ServiceScope.SERVICE_REGISTRATION),
+                      b.get(ServiceScope.SERVICE_REGISTRATION));
+    }
+
+    @Test
+    public void testRestartStateImmutable() throws Exception {
+        RestartState state = new RestartState();
+        Map<String, String> properties = new HashMap<>();
+        properties.put("a", "1");
+        state.setServiceProperties(properties);
+        properties.put("a", "2");
+        assertEquals("1", state.getServiceProperties().get("a"));
+        try {
+            state.getServiceProperties().put("a", "3");
+            fail("restart state properties should be immutable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        ObjectMapper mapper = new ObjectMapper();
+        RestartState restored = mapper.readValue(mapper.writeValueAsString(state),
+                                                 RestartState.class);
+        assertTrue(restored.getServiceProperties() instanceof ServiceProperties);
+        assertEquals(state.getServiceProperties(),
+                     restored.getServiceProperties());
+    }
+}
@@ -0,0 +1,145 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.junit.Test;
+import org.stringtemplate.v4.STGroupFile;
+
+import com.hellblazer.utils.TemporaryDirectory;
+
+/**
+ * @author hhildebrand
+ *
+ */
+public class TestTemplateGroupCache {
+
+    private static void write(File file, String content) throws IOException {
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(content);
+        }
+    }
+
+    @Test
+    public void testModifiedImportRecompiled() throws Exception {
+        try (TemporaryDirectory tempDirectory = new TemporaryDirectory(
+                                                                       "template-cache-",
+                                                                       "dir")) {
+            TemplateGroupCache cache = new TemplateGroupCache();
+            File imported = new File(tempDirectory.directory, "imported.stg");
+            write(imported, "entry(a) ::= <<a=<a>\n>>\n");
+            File groupFile = new File(tempDirectory.directory, "test.stg");
+            write(groupFile,
+                  "import \"imported.stg\"\nconfiguration(a) ::= <<\n<entry(a)>\n>>\n");
+            STGroupFile group = cache.getGroup(groupFile.getPath());
+            String fingerprint = cache.getFingerprint(groupFile.getPath());
+            assertSame(group, cache.getGroup(groupFile.getPath()));
+
+            write(imported, "entry(a) ::= <<A=<a>\n>>\n");
+            imported.setLastModified(imported.lastModified() + 2000);
+            assertFalse(fingerprint.equals(cache.getFingerprint(groupFile.getPath())));
+            STGroupFile recompiled = cache.getGroup(groupFile.getPath());
+            assertNotSame(group, recompiled);
+            assertEquals("A=1",
+                         recompiled.getInstanceOf("configuration").add("a", 1).render().trim());
+        }
+    }
+
+    @Test
+    public void testModifiedGroupRecompiled() throws Exception {
+        try (TemporaryDirectory tempDirectory = new TemporaryDirectory(
+                                                                       "template-cache-",
+                                                                       "dir")) {
+            TemplateGroupCache cache = new TemplateGroupCache();
+            File groupFile = new File(tempDirectory.directory, "test.stg");
+            write(groupFile, "configuration(a) ::= <<\na=<a>\n>>\n");
+            STGroupFile group = cache.getGroup(groupFile.getPath());
+            assertSame(group, cache.getGroup(groupFile.getAbsolutePath()));
+            assertEquals(1, cache.size());
+
+            write(groupFile, "configuration(a) ::= <<\nA=<a>\n>>\n");
+            groupFile.setLastModified(groupFile.lastModified() + 2000);
+            STGroupFile recompiled = cache.getGroup(groupFile.getPath());
+            assertNotSame(group, recompiled);
+            assertEquals(1, cache.size());
+            assertEquals("A=1",
+                         recompiled.getInstanceOf("configuration").add("a", 1).render());
+        }
+    }
+
+    @Test
+    public void testModifiedLengthRecompiled() throws Exception {
+        try (TemporaryDirectory tempDirectory = new TemporaryDirectory(
+                                                                       "template-cache-",
+                                                                       "dir")) {
+            TemplateGroupCache cache = new TemplateGroupCache();
+            File groupFile = new File(tempDirectory.directory, "test.stg");
+            write(groupFile, "configuration(a) ::= <<\na=<a>\n>>\n");
+            long lastModified = groupFile.lastModified();
+            STGroupFile group = cache.getGroup(groupFile.getPath());
+            String fingerprint = cache.getFingerprint(groupFile.getPath());
+
+            // rewritten within the resolution of the modification time
+            write(groupFile, "configuration(a) ::= <<\nvalue=<a>\n>>\n");
+            groupFile.setLastModified(lastModified);
+            assertFalse(fingerprint.equals(cache.getFingerprint(groupFile.getPath())));
+            STGroupFile recompiled = cache.getGroup(groupFile.getPath());
+            assertNotSame(group, recompiled);
+            assertEquals("value=1",
+                         recompiled.getInstanceOf("configuration").add("a", 1).render());
+        }
+    }
+
+    @Test
+    public void testPassResolvesOnce() throws Exception {
+        try (TemporaryDirectory tempDirectory = new TemporaryDirectory(
+                                                                       "template-cache-",
+                                                                       "dir")) {
+            TemplateGroupCache cache = new TemplateGroupCache();
+            File groupFile = new File(tempDirectory.directory, "test.stg");
+            write(groupFile, "configuration(a) ::= <<\na=<a>\n>>\n");
+            TemplateGroupCache.Pass pass = cache.pass();
+            STGroupFile group = pass.getGroup(groupFile.getPath());
+            String fingerprint = pass.getFingerprint(groupFile.getPath());
+
+            write(groupFile, "configuration(a) ::= <<\nA=<a>\n>>\n");
+            groupFile.setLastModified(groupFile.lastModified() + 2000);
+            // the sources are not examined again during the pass
+            assertSame(group, pass.getGroup(groupFile.getPath()));
+            assertEquals(fingerprint, pass.getFingerprint(groupFile.getPath()));
+
+            TemplateGroupCache.Pass next = cache.pass();
+            assertNotSame(group, next.getGroup(groupFile.getPath()));
+            assertFalse(fingerprint.equals(next.getFingerprint(groupFile.getPath())));
+        }
+    }
+
+    @Test
+    public void testResourceGroup() {
+        TemplateGroupCache cache = new TemplateGroupCache();
+        STGroupFile group = cache.getGroup("configurations/configuration1.stg");
+        assertSame(group, cache.getGroup("configurations/configuration1.stg"));
+        assertEquals(1, cache.size());
+    }
+}
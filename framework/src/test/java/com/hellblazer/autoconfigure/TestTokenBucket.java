@@ -0,0 +1,70 @@
+/** (C) Copyright 2013 Hal Hildebrand, All Rights Reserved
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hellblazer.autoconfigure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author hhildebrand
+ *
+ */
+public class TestTokenBucket {
+
+    @Test
+    public void testBurst() {
+        TokenBucket bucket = new TokenBucket(1, 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, bucket.reserve());
+        }
+        long wait = bucket.reserve();
+        assertTrue(String.format("unexpected wait %s", wait),
+                   wait > TimeUnit.MILLISECONDS.toNanos(900)
+                           && wait <= TimeUnit.SECONDS.toNanos(1));
+        long next = bucket.reserve();
+        assertTrue(String.format("reservations not spaced: %s, %s", wait,
+                                 next),
+                   next - wait > TimeUnit.MILLISECONDS.toNanos(900));
+    }
+
+    @Test
+    public void testInvalid() {
+        try {
+            new TokenBucket(0, 1);
+            fail("rate must be positive");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new TokenBucket(1, 0);
+            fail("burst must be at least 1");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRefill() throws Exception {
+        TokenBucket bucket = new TokenBucket(100, 1);
+        assertEquals(0, bucket.reserve());
+        Thread.sleep(20);
+        assertEquals(0, bucket.reserve());
+    }
+}
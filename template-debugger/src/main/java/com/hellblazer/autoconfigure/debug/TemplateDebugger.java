@@ -29,6 +29,7 @@ import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.hellblazer.autoconfigure.TemplateGroupCache;
 
 /**
  * A simple driver you can use to debug your templates without requiring the
@@ -78,7 +79,8 @@ public class TemplateDebugger {
 	 * instance.
 	 */
 	public String render() {
-		STGroupFile templateGroup = new STGroupFile(templateGroupFile);
+		STGroupFile templateGroup = TemplateGroupCache.getDefault().getGroup(
+				templateGroupFile);
 		ST template = templateGroup.getInstanceOf(templateName);
 		if (template == null) {
 			throw new IllegalStateException(